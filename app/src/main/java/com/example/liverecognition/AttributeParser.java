@@ -0,0 +1,235 @@
+package com.example.liverecognition;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Parses facial attribute strings reported by the tracker, a list of Name=value pairs separated by ';'.
+ * Replaces FSDK.GetValueConfidence and substring based parsing without allocating:
+ * numbers are parsed straight from the characters, and text values are interned, so every distinct
+ * value is allocated once and the same String instance is returned for it later on.
+ *
+ * Malformed input never throws: a pair without '=' is skipped, a value that isn't a number
+ * is reported as missing. Not thread safe.
+ */
+public class AttributeParser {
+
+    /** Returned for text values once the intern table is full. */
+    public static final String UNKNOWN_VALUE = "Unknown";
+
+    /** Exact powers of ten representable as double. */
+    private static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    /** Digits beyond this don't fit into the long mantissa and are ignored, only the exponent is adjusted. */
+    private static final int MAX_MANTISSA_DIGITS = 18;
+
+    /* Open addressing table of interned values, at most half full. */
+    private final String[] internTable;
+    private final int internCapacity;
+    private int internSize = 0;
+
+    /* Bounds of the value found by the last call to find. */
+    private int valueStart;
+    private int valueEnd;
+
+    /**
+     * @param internCapacity Maximal number of distinct text values, further ones are reported as UNKNOWN_VALUE.
+     */
+    public AttributeParser(final int internCapacity) {
+        var tableSize = 4;
+        while (tableSize < internCapacity * 2)
+            tableSize *= 2;
+
+        this.internTable = new String[tableSize];
+        this.internCapacity = internCapacity;
+    }
+
+    /**
+     * Returns the confidence stored under the name, like FSDK.GetValueConfidence does.
+     *
+     * @return Parsed value or the fallback if the name is missing or its value is not a number.
+     */
+    public float getConfidence(@NonNull final String attributes, @NonNull final String name, final float fallback) {
+        if (!find(attributes, name))
+            return fallback;
+
+        final var value = parseNumber(attributes, valueStart, valueEnd);
+        return Double.isNaN(value) ? fallback : (float)value;
+    }
+
+    /**
+     * Returns the text stored under the name with surrounding whitespace removed.
+     *
+     * @return Interned value, null if the name is missing.
+     */
+    @Nullable
+    public String getValue(@NonNull final String attributes, @NonNull final String name) {
+        if (!find(attributes, name))
+            return null;
+
+        return intern(attributes, valueStart, valueEnd);
+    }
+
+    /** Number of distinct text values seen so far. */
+    public int getInternedCount() {
+        return internSize;
+    }
+
+    /* Looks up the pair with the given name and stores the trimmed bounds of its value. */
+    private boolean find(final String attributes, final String name) {
+        final var length = attributes.length();
+        var pairStart = 0;
+
+        while (pairStart < length) {
+            var pairEnd = attributes.indexOf(';', pairStart);
+            if (pairEnd < 0)
+                pairEnd = length;
+
+            final var separator = indexOf(attributes, '=', pairStart, pairEnd);
+            if (separator < 0) {
+                pairStart = pairEnd + 1;
+                continue;
+            }
+
+            final var nameStart = skipWhitespace(attributes, pairStart, separator);
+            final var nameEnd = trimWhitespace(attributes, nameStart, separator);
+
+            if (nameEnd - nameStart == name.length() && attributes.regionMatches(nameStart, name, 0, name.length())) {
+                valueStart = skipWhitespace(attributes, separator + 1, pairEnd);
+                valueEnd = trimWhitespace(attributes, valueStart, pairEnd);
+                return true;
+            }
+
+            pairStart = pairEnd + 1;
+        }
+
+        return false;
+    }
+
+    private static int indexOf(final String text, final char c, final int start, final int end) {
+        for (var i = start; i < end; ++i) {
+            if (text.charAt(i) == c)
+                return i;
+        }
+        return -1;
+    }
+
+    private static int skipWhitespace(final String text, int start, final int end) {
+        while (start < end && Character.isWhitespace(text.charAt(start)))
+            ++start;
+        return start;
+    }
+
+    private static int trimWhitespace(final String text, final int start, int end) {
+        while (end > start && Character.isWhitespace(text.charAt(end - 1)))
+            --end;
+        return end;
+    }
+
+    /**
+     * Parses a decimal number with an optional sign, fraction and exponent.
+     * Precision is that of the 18 leading digits, plenty for confidences.
+     *
+     * @return NaN if the text is not a number.
+     */
+    static double parseNumber(final CharSequence text, final int start, final int end) {
+        var i = start;
+        var negative = false;
+
+        if (i < end && (text.charAt(i) == '-' || text.charAt(i) == '+'))
+            negative = text.charAt(i++) == '-';
+
+        var mantissa = 0L;
+        var mantissaDigits = 0;
+        var exponent = 0;
+        var digits = 0;
+
+        for (; i < end && isDigit(text.charAt(i)); ++i, ++digits) {
+            if (mantissaDigits < MAX_MANTISSA_DIGITS) {
+                mantissa = mantissa * 10 + (text.charAt(i) - '0');
+                if (mantissa != 0)
+                    ++mantissaDigits;
+            } else {
+                ++exponent;
+            }
+        }
+
+        if (i < end && text.charAt(i) == '.') {
+            for (++i; i < end && isDigit(text.charAt(i)); ++i, ++digits) {
+                if (mantissaDigits < MAX_MANTISSA_DIGITS) {
+                    mantissa = mantissa * 10 + (text.charAt(i) - '0');
+                    --exponent;
+                    if (mantissa != 0)
+                        ++mantissaDigits;
+                }
+            }
+        }
+
+        if (digits == 0)
+            return Double.NaN;
+
+        if (i < end && (text.charAt(i) == 'e' || text.charAt(i) == 'E')) {
+            var exponentNegative = false;
+            if (++i < end && (text.charAt(i) == '-' || text.charAt(i) == '+'))
+                exponentNegative = text.charAt(i++) == '-';
+
+            if (i == end || !isDigit(text.charAt(i)))
+                return Double.NaN;
+
+            var explicitExponent = 0;
+            for (; i < end && isDigit(text.charAt(i)); ++i) {
+                /* Saturate, anything this large is zero or infinity anyway. */
+                if (explicitExponent < 10000)
+                    explicitExponent = explicitExponent * 10 + (text.charAt(i) - '0');
+            }
+
+            exponent += exponentNegative ? -explicitExponent : explicitExponent;
+        }
+
+        if (i != end)
+            return Double.NaN;
+
+        double value = mantissa;
+        if (exponent < 0) {
+            value = -exponent < POWERS_OF_TEN.length ? value / POWERS_OF_TEN[-exponent] : value / Math.pow(10, -exponent);
+        } else if (exponent > 0) {
+            value = exponent < POWERS_OF_TEN.length ? value * POWERS_OF_TEN[exponent] : value * Math.pow(10, exponent);
+        }
+
+        return negative ? -value : value;
+    }
+
+    private static boolean isDigit(final char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    /* Returns the interned copy of the text region, allocating only for values not seen before. */
+    private String intern(final String text, final int start, final int end) {
+        final var length = end - start;
+
+        /* Same hash as String.hashCode, so stored strings are compared by their cached hash first. */
+        var hash = 0;
+        for (var i = start; i < end; ++i)
+            hash = 31 * hash + text.charAt(i);
+
+        final var mask = internTable.length - 1;
+        var slot = (hash ^ (hash >>> 16)) & mask;
+
+        for (var value = internTable[slot]; value != null; value = internTable[slot]) {
+            if (value.hashCode() == hash && value.length() == length && text.regionMatches(start, value, 0, length))
+                return value;
+            slot = (slot + 1) & mask;
+        }
+
+        if (internSize == internCapacity)
+            return UNKNOWN_VALUE;
+
+        final var value = text.substring(start, end);
+        internTable[slot] = value;
+        ++internSize;
+        return value;
+    }
+}
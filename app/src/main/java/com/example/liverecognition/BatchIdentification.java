@@ -0,0 +1,131 @@
+package com.example.liverecognition;
+
+import androidx.annotation.NonNull;
+
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.luxand.FSDK;
+
+/**
+ * Identifies every photo of a stream against the gallery, see FacesProcessor.identify, without any UI.
+ *
+ * Photos are read, decoded and their templates extracted on a pool of worker threads, each with its own
+ * TemplateExtractor and result holder. Every worker identifies the templates it extracts and reports the result
+ * right away, so results arrive as photos complete, not in the order of the stream. Workers match against the gallery
+ * index at the same time, each spreading its matching over the index's own threads.
+ *
+ * Listener calls are made on the worker threads, one at a time.
+ */
+public class BatchIdentification {
+
+    /**
+     * Receives results of the identification.
+     */
+    public interface Listener {
+
+        /**
+         * @param result Candidates found for the photo. The holder is reused once the call returns.
+         */
+        void onIdentified(@NonNull ImageSource source, @NonNull FacesProcessor.IdentificationResult result);
+
+        /**
+         * @param error FSDK error code of the template extraction, see TemplateExtractor.extract, or of the matching.
+         */
+        void onError(@NonNull ImageSource source, int error);
+
+        void onFinished(int identifiedCount, int errorCount, boolean cancelled);
+    }
+
+    private final Iterator<? extends ImageSource> sources;
+    private final Listener listener;
+    private final int candidateCount;
+    private final int workerCount;
+    private final ExecutorService workers;
+
+    private volatile boolean cancelled = false;
+    private boolean started = false;
+
+    /* Guarded by the listener lock. */
+    private final Object listenerLock = new Object();
+    private int runningWorkers;
+    private int identifiedCount = 0;
+    private int errorCount = 0;
+
+    /**
+     * @param sources Photos to identify, read as the identification goes, so they may be produced lazily.
+     * @param candidateCount Maximal number of candidates reported for a photo.
+     * @param workerCount Number of threads extracting templates.
+     */
+    public BatchIdentification(@NonNull final Iterator<? extends ImageSource> sources, final int candidateCount,
+                               @NonNull final Listener listener, final int workerCount) {
+        this.sources = sources;
+        this.listener = listener;
+        this.candidateCount = candidateCount;
+        this.workerCount = Math.max(1, workerCount);
+        this.runningWorkers = this.workerCount;
+
+        workers = Executors.newFixedThreadPool(this.workerCount, (runnable) -> {
+            final var thread = new Thread(runnable, "BatchIdentification");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public BatchIdentification(@NonNull final Iterator<? extends ImageSource> sources, final int candidateCount, @NonNull final Listener listener) {
+        this(sources, candidateCount, listener, Runtime.getRuntime().availableProcessors());
+    }
+
+    /** Starts the identification in the background. Can be called once. */
+    public synchronized void start() {
+        if (started)
+            throw new IllegalStateException("Identification has already been started");
+        started = true;
+
+        for (var i = 0; i < workerCount; ++i)
+            workers.execute(this::identify);
+        workers.shutdown();
+    }
+
+    /** Stops taking new photos. Photos in progress are still reported, then onFinished is called. */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /* Next photo to process, null when there are no more. */
+    private ImageSource nextSource() {
+        synchronized (sources) {
+            return !cancelled && sources.hasNext() ? sources.next() : null;
+        }
+    }
+
+    /* Worker thread. */
+    private void identify() {
+        final var extractor = new TemplateExtractor();
+        final var result = new FacesProcessor.IdentificationResult(candidateCount);
+
+        try {
+            for (var source = nextSource(); source != null; source = nextSource()) {
+                var error = extractor.extract(source, result.getFaceTemplate());
+                if (error == FSDK.FSDKE_OK)
+                    error = FacesProcessor.identify(result.getFaceTemplate(), result);
+
+                synchronized (listenerLock) {
+                    if (error == FSDK.FSDKE_OK) {
+                        ++identifiedCount;
+                        listener.onIdentified(source, result);
+                    } else {
+                        ++errorCount;
+                        listener.onError(source, error);
+                    }
+                }
+            }
+        } finally {
+            synchronized (listenerLock) {
+                if (--runningWorkers == 0)
+                    listener.onFinished(identifiedCount, errorCount, cancelled);
+            }
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package com.example.liverecognition;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.luxand.FSDK;
+
+/**
+ * Enrolls a stream of photos, one person per photo, into the tracker.
+ *
+ * Reading, decoding and template extraction are independent per photo and run on a pool of worker threads,
+ * each with its own TemplateExtractor. Extracted templates pass through a bounded queue to a single
+ * enrolling thread, which creates and names the IDs in batches, one tracker command per batch, so live frames
+ * are held up by a batch at most. Workers wait while the queue is full, sources are read no faster than the
+ * tracker takes the templates in.
+ *
+ * Every listener call is made on the enrolling thread, in the order the photos were finished.
+ */
+public class BulkEnrollment {
+
+    /** Templates waiting for the enrolling thread. */
+    private static final int QUEUE_CAPACITY = 64;
+
+    /** Largest number of IDs created by a single tracker command. */
+    private static final int BATCH_SIZE = 32;
+
+    /**
+     * Receives the progress of the enrollment, on the enrolling thread.
+     */
+    public interface Listener {
+
+        void onEnrolled(@NonNull ImageSource source, long id);
+
+        /**
+         * @param error FSDK error code of the template extraction, see TemplateExtractor.extract, or FSDKE_FAILED
+         * if the ID can't be created.
+         */
+        void onError(@NonNull ImageSource source, int error);
+
+        /** Called after every batch. */
+        void onProgress(int enrolledCount, int errorCount);
+
+        void onFinished(int enrolledCount, int errorCount, boolean cancelled);
+    }
+
+    /* Photo finished by a worker, with the template or the error. */
+    private static class Item {
+
+        /* Marks the end of the stream, put by the last worker. */
+        private static final Item END = new Item(null, FSDK.FSDKE_OK, null);
+
+        private final ImageSource source;
+        private final int error;
+        private final FSDK.FSDK_FaceTemplate faceTemplate;
+
+        private Item(final ImageSource source, final int error, final FSDK.FSDK_FaceTemplate faceTemplate) {
+            this.source = source;
+            this.error = error;
+            this.faceTemplate = faceTemplate;
+        }
+    }
+
+    private final Iterator<? extends ImageSource> sources;
+    private final Listener listener;
+    private final int workerCount;
+
+    private final ArrayBlockingQueue<Item> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final ExecutorService threads;
+
+    private volatile boolean cancelled = false;
+    private int runningWorkers;
+    private boolean started = false;
+
+    /**
+     * @param sources Photos to enroll, read as the enrollment goes, so they may be produced lazily.
+     * @param workerCount Number of threads extracting templates.
+     */
+    public BulkEnrollment(@NonNull final Iterator<? extends ImageSource> sources, @NonNull final Listener listener, final int workerCount) {
+        this.sources = sources;
+        this.listener = listener;
+        this.workerCount = Math.max(1, workerCount);
+        this.runningWorkers = this.workerCount;
+
+        threads = Executors.newFixedThreadPool(this.workerCount + 1, (runnable) -> {
+            final var thread = new Thread(runnable, "BulkEnrollment");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public BulkEnrollment(@NonNull final Iterator<? extends ImageSource> sources, @NonNull final Listener listener) {
+        this(sources, listener, Runtime.getRuntime().availableProcessors());
+    }
+
+    /** Starts the enrollment in the background. Can be called once. */
+    public synchronized void start() {
+        if (started)
+            throw new IllegalStateException("Enrollment has already been started");
+        started = true;
+
+        for (var i = 0; i < workerCount; ++i)
+            threads.execute(this::extract);
+        threads.execute(this::enroll);
+        threads.shutdown();
+    }
+
+    /**
+     * Stops taking new photos. Templates already extracted are dropped, IDs already created stay.
+     * onFinished is still called.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /* Next photo to process, null when there are no more. */
+    private ImageSource nextSource() {
+        synchronized (sources) {
+            return !cancelled && sources.hasNext() ? sources.next() : null;
+        }
+    }
+
+    /* Worker thread. */
+    private void extract() {
+        final var extractor = new TemplateExtractor();
+
+        try {
+            for (var source = nextSource(); source != null; source = nextSource()) {
+                final var faceTemplate = new FSDK.FSDK_FaceTemplate();
+                final var result = extractor.extract(source, faceTemplate);
+                queue.put(new Item(source, result, result == FSDK.FSDKE_OK ? faceTemplate : null));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            /* The enrolling thread waits for END even if a worker fails. */
+            final boolean last;
+            synchronized (this) {
+                last = --runningWorkers == 0;
+            }
+
+            if (last)
+                putUninterruptibly(Item.END);
+        }
+    }
+
+    private void putUninterruptibly(final Item item) {
+        var interrupted = false;
+        while (true) {
+            try {
+                queue.put(item);
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /* Enrolling thread. */
+    private void enroll() {
+        final var batch = new ArrayList<Item>(BATCH_SIZE);
+        final var ids = new long[BATCH_SIZE];
+        var enrolledCount = 0;
+        var errorCount = 0;
+        var finished = false;
+
+        while (!finished) {
+            batch.clear();
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                break;
+            }
+            queue.drainTo(batch, BATCH_SIZE - 1);
+
+            /* Workers stop once END is queued, nothing follows it. */
+            if (batch.get(batch.size() - 1) == Item.END) {
+                batch.remove(batch.size() - 1);
+                finished = true;
+            }
+
+            if (cancelled)
+                continue;
+
+            /* A single tracker command creates the IDs of the whole batch. */
+            TrackerThread.getUninterruptibly(FacesProcessor.submitCommand((tracker) -> {
+                for (var i = 0; i < batch.size(); ++i) {
+                    final var item = batch.get(i);
+                    ids[i] = item.error == FSDK.FSDKE_OK ? FacesProcessor.createID(item.faceTemplate, item.source.getName()) : -1;
+                }
+                return null;
+            }));
+
+            for (var i = 0; i < batch.size(); ++i) {
+                final var item = batch.get(i);
+                if (item.error != FSDK.FSDKE_OK) {
+                    ++errorCount;
+                    listener.onError(item.source, item.error);
+                } else if (ids[i] < 0) {
+                    ++errorCount;
+                    listener.onError(item.source, FSDK.FSDKE_FAILED);
+                } else {
+                    ++enrolledCount;
+                    listener.onEnrolled(item.source, ids[i]);
+                }
+            }
+
+            listener.onProgress(enrolledCount, errorCount);
+        }
+
+        listener.onFinished(enrolledCount, errorCount, cancelled);
+    }
+}
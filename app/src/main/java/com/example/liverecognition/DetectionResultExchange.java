@@ -0,0 +1,49 @@
+package com.example.liverecognition;
+
+import androidx.annotation.NonNull;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Triple buffer passing detection results from a single producer thread to a single consumer thread without locks.
+ *
+ * The producer fills its back buffer and publishes it by swapping it with the middle one, the consumer takes the
+ * middle buffer by swapping it with its front one if a newer result has been published since. Both swaps are
+ * atomic exchanges of the middle index, so the producer never waits, and the front buffer stays untouched until
+ * the consumer lets go of it with the next acquire.
+ */
+public class DetectionResultExchange {
+
+    /** Set in the middle index when it holds a result the consumer has not taken yet. */
+    private static final int FRESH = 4;
+
+    private final FacesProcessor.DetectionResult[] buffers = {
+        new FacesProcessor.DetectionResult(), new FacesProcessor.DetectionResult(), new FacesProcessor.DetectionResult()
+    };
+
+    private final AtomicInteger middle = new AtomicInteger(1);
+
+    /* Owned by the producer and the consumer. */
+    private int back = 0;
+    private int front = 2;
+
+    /** Buffer to fill with the next result. Producer thread only. */
+    @NonNull
+    public FacesProcessor.DetectionResult getBack() {
+        return buffers[back];
+    }
+
+    /** Publishes the filled back buffer, a new one is returned by getBack. Producer thread only. */
+    public void publish() {
+        back = middle.getAndSet(back | FRESH) & ~FRESH;
+    }
+
+    /** Latest published result, unchanged until the next call. Consumer thread only. */
+    @NonNull
+    public FacesProcessor.DetectionResult acquire() {
+        if ((middle.get() & FRESH) != 0)
+            front = middle.getAndSet(front) & ~FRESH;
+
+        return buffers[front];
+    }
+}
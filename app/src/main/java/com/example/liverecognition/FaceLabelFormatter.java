@@ -0,0 +1,258 @@
+package com.example.liverecognition;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Builds the text drawn under every face box without allocating.
+ *
+ * Label templates such as "Liveness: %.2f" are split once into the text around the number and its precision.
+ * Labels are kept per face ID in reusable char buffers, and the text is only rebuilt when something it shows changes:
+ * the name, the liveness error, or the liveness and image quality as rounded for display.
+ */
+public class FaceLabelFormatter {
+
+    /** Labels kept, faces on screen at once plus a few that have just left. */
+    private static final int LABEL_CAPACITY = 8;
+
+    private static final String SEPARATOR = "; ";
+
+    /**
+     * Label template with a single %.Nf placeholder.
+     */
+    private static class Template {
+
+        private final String prefix;
+        private final String suffix;
+        private final int precision;
+        private final int scale;
+
+        private Template(final String template) {
+            final var start = template.indexOf('%');
+            final var end = template.indexOf('f', start);
+            if (start < 0 || end < 0 || template.charAt(start + 1) != '.')
+                throw new IllegalArgumentException("Expected a %.Nf placeholder in " + template);
+
+            prefix = template.substring(0, start);
+            suffix = template.substring(end + 1);
+            precision = Integer.parseInt(template.substring(start + 2, end));
+
+            var scale = 1;
+            for (var i = 0; i < precision; ++i)
+                scale *= 10;
+            this.scale = scale;
+        }
+
+        /* Value as displayed, in units of the last digit. */
+        private long round(final float value) {
+            return Math.round(value * (double)scale);
+        }
+    }
+
+    /**
+     * Text of a face label, valid until the next call to format.
+     */
+    public static class Label {
+
+        private char[] text = new char[64];
+        private int length = 0;
+        private boolean live = true;
+
+        /* What the text shows, compared on the next frame. Key is -1 for a free label. */
+        private long id = -1;
+        private long lastUse = 0;
+        private String name = null;
+        private String livenessError = null;
+        private int state = -1;
+        private long liveness = 0;
+        private long imageQuality = 0;
+
+        @NonNull
+        public char[] getText() {
+            return text;
+        }
+
+        public int getLength() {
+            return length;
+        }
+
+        /** False if the face is considered fake or its liveness can't be trusted. */
+        public boolean isLive() {
+            return live;
+        }
+
+        private void clear() {
+            length = 0;
+        }
+
+        private void ensureCapacity(final int capacity) {
+            if (text.length < capacity) {
+                final var newText = new char[Math.max(capacity, text.length * 2)];
+                System.arraycopy(text, 0, newText, 0, length);
+                text = newText;
+            }
+        }
+
+        private void appendSeparator() {
+            if (length > 0)
+                append(SEPARATOR);
+        }
+
+        private void append(final String string) {
+            ensureCapacity(length + string.length());
+            string.getChars(0, string.length(), text, length);
+            length += string.length();
+        }
+
+        private void append(final char character) {
+            ensureCapacity(length + 1);
+            text[length++] = character;
+        }
+    }
+
+    /* States of the liveness part of a label. */
+    private static final int NO_LIVENESS = 0;
+    private static final int LIVENESS_ERROR = 1;
+    private static final int LOW_QUALITY = 2;
+    private static final int FAKE = 3;
+    private static final int LIVE = 4;
+
+    private final Template liveTemplate;
+    private final Template fakeTemplate;
+    private final Template lowQualityTemplate;
+    private final Template qualityTemplate;
+    private final char decimalSeparator;
+
+    private final Label[] labels = new Label[LABEL_CAPACITY];
+    private long useCount = 0;
+
+    /**
+     * @param decimalSeparator Separator of the locale the numbers are shown in.
+     */
+    public FaceLabelFormatter(@NonNull final String liveTemplate, @NonNull final String fakeTemplate,
+                              @NonNull final String lowQualityTemplate, @NonNull final String qualityTemplate, final char decimalSeparator) {
+        this.liveTemplate = new Template(liveTemplate);
+        this.fakeTemplate = new Template(fakeTemplate);
+        this.lowQualityTemplate = new Template(lowQualityTemplate);
+        this.qualityTemplate = new Template(qualityTemplate);
+        this.decimalSeparator = decimalSeparator;
+
+        for (var i = 0; i < labels.length; ++i)
+            labels[i] = new Label();
+    }
+
+    /**
+     * Returns the label of the face, rebuilding its text only if what it shows has changed since the previous frame.
+     *
+     * @param livenessEnabled Whether liveness is shown at all.
+     * @param useImageQuality Whether liveness errors and image quality are shown, for the iBeta liveness addon.
+     * @param liveness Liveness of the face, negative while it is not known yet.
+     */
+    @NonNull
+    public Label format(final long id, @NonNull final String name, final boolean livenessEnabled, final boolean useImageQuality,
+                        final float liveness, final float imageQuality, @Nullable final String livenessError) {
+        /* Negative liveness values indicated that liveness value couldn't be obtained, i.e. not enough frames have been collected to output liveness value. */
+        final int state;
+        if (!livenessEnabled || liveness < 0)
+            state = NO_LIVENESS;
+        else if (useImageQuality && livenessError != null)
+            state = LIVENESS_ERROR;
+        else if (useImageQuality && imageQuality < 0.5)
+            state = LOW_QUALITY;
+        else if (liveness < 0.5)
+            state = FAKE;
+        else
+            state = LIVE;
+
+        final var showsQuality = useImageQuality && (state == LOW_QUALITY || state == FAKE || state == LIVE);
+        final var roundedLiveness = state == FAKE ? fakeTemplate.round(liveness) : state == LIVE ? liveTemplate.round(liveness) : 0;
+        final var roundedQuality = !showsQuality ? 0 : state == LOW_QUALITY ? lowQualityTemplate.round(imageQuality) : qualityTemplate.round(imageQuality);
+
+        final var label = findLabel(id);
+        if (label.state == state && label.liveness == roundedLiveness && label.imageQuality == roundedQuality &&
+            name.equals(label.name) && (state != LIVENESS_ERROR || livenessError.equals(label.livenessError)))
+            return label;
+
+        label.state = state;
+        label.liveness = roundedLiveness;
+        label.imageQuality = roundedQuality;
+        label.name = name;
+        label.livenessError = livenessError;
+        label.live = state == NO_LIVENESS || state == LIVE;
+
+        /* When using IBeta liveness addon errors and image quality come first. */
+        label.clear();
+        if (state == LIVENESS_ERROR) {
+            label.append(livenessError);
+        } else if (showsQuality) {
+            appendNumber(label, state == LOW_QUALITY ? lowQualityTemplate : qualityTemplate, roundedQuality);
+        }
+
+        if (state == FAKE || state == LIVE) {
+            label.appendSeparator();
+            appendNumber(label, state == FAKE ? fakeTemplate : liveTemplate, roundedLiveness);
+        }
+
+        if (!name.isEmpty()) {
+            label.appendSeparator();
+            label.append(name);
+        }
+
+        return label;
+    }
+
+    /* Label of the ID, or the least recently used one taken over for it. */
+    private Label findLabel(final long id) {
+        ++useCount;
+
+        var leastRecent = labels[0];
+        for (final var label : labels) {
+            if (label.id == id) {
+                label.lastUse = useCount;
+                return label;
+            }
+
+            if (label.lastUse < leastRecent.lastUse)
+                leastRecent = label;
+        }
+
+        leastRecent.id = id;
+        leastRecent.lastUse = useCount;
+        leastRecent.state = -1;
+        return leastRecent;
+    }
+
+    private void appendNumber(final Label label, final Template template, final long rounded) {
+        label.append(template.prefix);
+
+        var value = rounded;
+        if (value < 0) {
+            label.append('-');
+            value = -value;
+        }
+
+        appendDigits(label, value / template.scale, 1);
+        if (template.precision > 0) {
+            label.append(decimalSeparator);
+            appendDigits(label, value % template.scale, template.precision);
+        }
+
+        label.append(template.suffix);
+    }
+
+    /* Appends the value with at least minDigits digits, padded with zeros. */
+    private static void appendDigits(final Label label, final long value, final int minDigits) {
+        var digits = 1;
+        for (var rest = value / 10; rest > 0; rest /= 10)
+            ++digits;
+        digits = Math.max(digits, minDigits);
+
+        label.ensureCapacity(label.length + digits);
+        var rest = value;
+        for (var i = label.length + digits - 1; i >= label.length; --i) {
+            label.text[i] = (char)('0' + rest % 10);
+            rest /= 10;
+        }
+        label.length += digits;
+    }
+}
@@ -1,13 +1,24 @@
 package com.example.liverecognition;
 
+import android.os.SystemClock;
 import android.util.Log;
+import android.util.LongSparseArray;
 import android.graphics.RectF;
 import android.app.Application;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.camera.core.ImageProxy;
 
 import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 
 import com.luxand.FSDK;
 
@@ -28,13 +39,65 @@ public class FacesProcessor {
     /** Use an improved version of face detection and recognition. */
     private static final boolean USE_NEW_DETECTION = true;
 
+    /** Detection version of the tracker memory, memory saved with the other version can't be used. */
+    private static final int DETECTION_VERSION = USE_NEW_DETECTION ? 2 : 1;
+
     /** Use iBeta liveness addon for liveness detection. If false uses a simpler, but less accurate model. */
     private static final boolean USE_IBETA_LIVENESS_ADDON = true;
 
-    private static boolean enableLiveness = false;
+    /** Convert camera frames on all cores. Small frames are still converted on the analysis thread. */
+    private static final boolean USE_PARALLEL_CONVERSION = true;
+
+    /** Image size used for face detection, see FaceDetection2PatchSize below. */
+    private static final int DETECTION_PATCH_SIZE = 256;
+
+    /** Filter used to downscale frames to the detection patch size during conversion. NONE passes full resolution frames to the tracker. */
+    private static final YUVToRGBConverter.Filter FRAME_DOWNSCALE_FILTER = YUVToRGBConverter.Filter.BOX;
+
+    /** Feed the tracker grayscale frames made of the luma plane while liveness is off. Liveness detection requires color frames. */
+    private static final boolean USE_GRAYSCALE_WITHOUT_LIVENESS = true;
+
+    /* Toggled on the UI thread, read on the analysis thread. */
+    private static volatile boolean enableLiveness = false;
+
+    /** Identify faces with the sharded GalleryIndex instead of TrackerMatchFaces. */
+    private static final boolean USE_GALLERY_INDEX = true;
+
+    /** Minimal similarity of a match. New face recognition uses a lower matching threshold. */
+    private static final float MATCH_THRESHOLD = USE_NEW_DETECTION ? 0.7f : 0.992f;
+
+    /** Purge unnamed IDs not seen for a while, see GalleryRetention. */
+    private static final boolean USE_GALLERY_RETENTION = true;
+
+    /** Unnamed IDs not seen for this long are purged. */
+    private static final long UNNAMED_ID_MAX_AGE_MS = 7L * 24 * 60 * 60 * 1000;
+
+    /** Unnamed IDs kept at most, the least recently seen ones above it are purged. */
+    private static final int MAX_UNNAMED_IDS = 2000;
+
+    /** Frames between retention sweeps, about five minutes at 30 FPS. */
+    private static final int RETENTION_SWEEP_INTERVAL = 9000;
+
+    /* Last-seen times of tracked IDs, on the tracker thread. */
+    private static final GalleryRetention retention = new GalleryRetention(UNNAMED_ID_MAX_AGE_MS, MAX_UNNAMED_IDS);
+    private static long frameTime = 0;
+
+    /** Cap the templates of frequently seen IDs, see TemplateBudget. */
+    private static final boolean USE_TEMPLATE_BUDGET = true;
+
+    /** Templates an ID keeps at most. */
+    private static final int MAX_TEMPLATES_PER_ID = 16;
+
+    /** Frames between template budget passes, about fifteen minutes at 30 FPS. */
+    private static final int TEMPLATE_BUDGET_INTERVAL = 27000;
+
+    /* On the tracker thread. */
+    private static final TemplateBudget templateBudget = new TemplateBudget(MAX_TEMPLATES_PER_ID);
 
     /**
      * Locks ID and its name while it is being updated.
+     * Changes are queued for the tracker thread and run in the order they are made, none of the methods waits for them,
+     * so they can be called from the UI thread.
      */
     public static class NameLock {
 
@@ -47,12 +110,14 @@ public class FacesProcessor {
             lock();
         }
 
-        public void lock() {
-            FSDK.LockID(tracker, this.id);
+        @NonNull
+        public Future<Integer> lock() {
+            return trackerThread.submit(() -> FSDK.LockID(tracker, this.id));
         }
 
-        public void unlock() {
-            FSDK.UnlockID(tracker, this.id);
+        @NonNull
+        public Future<Integer> unlock() {
+            return trackerThread.submit(() -> FSDK.UnlockID(tracker, this.id));
         }
 
         @NonNull
@@ -60,13 +125,82 @@ public class FacesProcessor {
             return name;
         }
 
-        public void set(final String value) {
-            FSDK.SetName(tracker, id, value);
+        @NonNull
+        public Future<Void> set(final String value) {
+            return trackerThread.submit(() -> {
+                if (FSDK.SetName(tracker, id, value) == FSDK.FSDKE_OK)
+                    /* IDs learned by tracking may be newer than the snapshot, the record carries templates to recreate the ID. */
+                    addJournalRecord(TrackerJournal.SET_NAME, id, value, getTemplatesForID(id));
+
+                invalidateCachedID(id);
+                return null;
+            });
         }
 
-        public void setAndUnlock(final String value) {
+        @NonNull
+        public Future<Integer> setAndUnlock(final String value) {
             set(value);
-            unlock();
+            return unlock();
+        }
+    }
+
+    /**
+     * Name and facial attributes of a tracker ID cached between frames, so that a face staying in view costs a
+     * single GetTrackerFace call per frame instead of a name lookup and several attribute calls.
+     * Names are reloaded when they are set, when the tracker is cleared or reassigns the ID, and every
+     * NAME_REFRESH_INTERVAL frames in case the tracker renamed the ID while merging. Attributes are reloaded
+     * every ATTRIBUTE_REFRESH_INTERVAL frames and on every frame until liveness becomes available.
+     * Accessed on the tracker thread only.
+     */
+    private static class CachedID {
+
+        private String name = null;
+        private long nameFrame = 0;
+
+        private long attributesCameraIdx = -1;
+        private long attributesFrame = 0;
+        private float liveness = -1.f;
+        private float imageQuality = -1.f;
+        private String livenessError = null;
+
+        private long seenFrame = 0;
+
+        private void update(final long cameraIdx, final long id) {
+            if (name == null || frameNumber - nameFrame >= NAME_REFRESH_INTERVAL) {
+                name = getNameForID(id);
+                nameFrame = frameNumber;
+            }
+
+            /* Attributes are computed per camera, reload them when the face moves to another one. */
+            if (enableLiveness && (attributesCameraIdx != cameraIdx || liveness < 0.f || frameNumber - attributesFrame >= ATTRIBUTE_REFRESH_INTERVAL)) {
+                loadAttributes(cameraIdx, id);
+                attributesCameraIdx = cameraIdx;
+                attributesFrame = frameNumber;
+            }
+
+            seenFrame = frameNumber;
+        }
+
+        private void invalidateAttributes() {
+            attributesCameraIdx = -1;
+        }
+
+        private void loadAttributes(final long cameraIdx, final long id) {
+            liveness = FSDK.GetTrackerFacialAttribute(tracker, cameraIdx, id, "Liveness", attributeValue, MAX_ATTRIBUTE_VALUE_LENGTH) == FSDK.FSDKE_OK
+                ? attributeParser.getConfidence(attributeValue[0], "Liveness", -1.f)
+                : -1.f;
+
+            /* For iBeta liveness addon Tracker additionally outputs image quality and potentially an error description. */
+            if (USE_IBETA_LIVENESS_ADDON) {
+                imageQuality = FSDK.GetTrackerFacialAttribute(tracker, cameraIdx, id, "ImageQuality", attributeValue, MAX_ATTRIBUTE_VALUE_LENGTH) == FSDK.FSDKE_OK
+                    ? attributeParser.getConfidence(attributeValue[0], "ImageQuality", -1.f)
+                    : -1.f;
+
+                /* If an error occurred during liveness detection, LivenessError attribute stores the error description */
+                livenessError = FSDK.GetTrackerFacialAttribute(tracker, cameraIdx, id, "LivenessError", attributeValue, MAX_ATTRIBUTE_VALUE_LENGTH) == FSDK.FSDKE_OK
+                    ? attributeParser.getValue(attributeValue[0], "LivenessError")
+                    : null;
+            }
         }
     }
 
@@ -76,57 +210,52 @@ public class FacesProcessor {
      */
     public static class Face {
 
-        private static final int livenessErrorStringLength = "LivenessError=".length();
-
         private long id;
         private String name = "";
 
+        private float liveness = -1.f;
+        private float imageQuality = -1.f;
         private String livenessError = null;
 
         private final RectF rect = new RectF();
-        private final float[] liveness = { -1.f };
-        private final float[] imageQuality = { -1.f };
-        private final String[] attributeValue = { "" };
         private final FSDK.TFace face = new FSDK.TFace();
         private final FSDK.TFacePosition facePosition = new FSDK.TFacePosition();
 
-        private void setID(final long id) {
+        private void setID(final CameraStream stream, final long id) {
+            final var cameraIdx = stream.cameraIdx;
+            final var frameScaleX = stream.frameScaleX;
+            final var frameScaleY = stream.frameScaleY;
+
+            final var cached = getCachedID(cameraIdx, id);
+
             this.id = id;
-            this.name = getNameForID(id);
+            this.name = cached.name;
 
             /* New detection uses different classes and API. */
             if (USE_NEW_DETECTION) {
-                FSDK.GetTrackerFace(tracker, 0, id, face);
-                rect.set(face.bbox.p0.x, face.bbox.p0.y, face.bbox.p1.x, face.bbox.p1.y);
+                FSDK.GetTrackerFace(tracker, cameraIdx, id, face);
+                rect.set(face.bbox.p0.x * frameScaleX, face.bbox.p0.y * frameScaleY, face.bbox.p1.x * frameScaleX, face.bbox.p1.y * frameScaleY);
             } else {
-                FSDK.GetTrackerFacePosition(tracker, 0, id, facePosition);
+                FSDK.GetTrackerFacePosition(tracker, cameraIdx, id, facePosition);
 
                 final var faceWidth = facePosition.w / 2;
                 final var faceHeight = (int)(faceWidth * 1.15);
-                rect.set(facePosition.xc - faceWidth, facePosition.yc - faceHeight, facePosition.xc + faceWidth, facePosition.yc + faceHeight);
+                rect.set((facePosition.xc - faceWidth) * frameScaleX, (facePosition.yc - faceHeight) * frameScaleY,
+                    (facePosition.xc + faceWidth) * frameScaleX, (facePosition.yc + faceHeight) * frameScaleY);
             }
 
             if (enableLiveness) {
-                if (FSDK.GetTrackerFacialAttribute(tracker, 0, id, "Liveness", attributeValue, MAX_ATTRIBUTE_VALUE_LENGTH) != FSDK.FSDKE_OK ||
-                    FSDK.GetValueConfidence(attributeValue[0], "Liveness", liveness) != FSDK.FSDKE_OK)
-                    liveness[0] = -1.f;
-
-                /* For iBeta liveness addon Tracker additionally outputs image quality and potentially an error description. */
-                if (USE_IBETA_LIVENESS_ADDON) {
-                    if (FSDK.GetTrackerFacialAttribute(tracker, 0, id, "ImageQuality", attributeValue, MAX_ATTRIBUTE_VALUE_LENGTH) != FSDK.FSDKE_OK ||
-                        FSDK.GetValueConfidence(attributeValue[0], "ImageQuality", imageQuality) != FSDK.FSDKE_OK)
-                        imageQuality[0] = -1.f;
-
-                    /* If an error occurred during liveness detection, LivenessError attribute stores the error description */
-                    if (FSDK.GetTrackerFacialAttribute(tracker, 0, id, "LivenessError", attributeValue, MAX_ATTRIBUTE_VALUE_LENGTH) == FSDK.FSDKE_OK) {
-                        livenessError = attributeValue[0].substring(livenessErrorStringLength, attributeValue[0].indexOf(";")).strip();
-                    } else {
-                        livenessError = null;
-                    }
-                }
+                liveness = cached.liveness;
+                imageQuality = cached.imageQuality;
+                livenessError = cached.livenessError;
             }
         }
 
+        /** Tracker ID of the face. */
+        public long getID() {
+            return id;
+        }
+
         @NonNull
         public String getName() {
             return name;
@@ -138,11 +267,11 @@ public class FacesProcessor {
         }
 
         public float getLiveness() {
-            return liveness[0];
+            return liveness;
         }
 
         public float getImageQuality() {
-            return imageQuality[0];
+            return imageQuality;
         }
 
         public String getLivenessError() {
@@ -152,6 +281,15 @@ public class FacesProcessor {
         public NameLock lockName() {
             return new NameLock(id, name);
         }
+
+        private void copyFrom(final Face other) {
+            id = other.id;
+            name = other.name;
+            liveness = other.liveness;
+            imageQuality = other.imageQuality;
+            livenessError = other.livenessError;
+            rect.set(other.rect);
+        }
     }
 
     /**
@@ -161,6 +299,7 @@ public class FacesProcessor {
     public static class DetectionResult {
 
         private int size = 0;
+        private long cameraIdx = 0;
         private final Face[] buffer = new Face[MAX_FACES];
 
         public DetectionResult() {
@@ -172,16 +311,143 @@ public class FacesProcessor {
             return size;
         }
 
+        /** Tracker camera index of the stream these faces were detected on. */
+        public long getCameraIdx() {
+            return cameraIdx;
+        }
+
         @NonNull
         public Face getFace(final int index) {
             return buffer[index];
         }
 
-        private void loadFaces() {
-            for (int i = 0; i < faceCount[0]; ++i)
-                buffer[i].setID(FacesProcessor.ids[i]);
+        /** Copies the faces of the other result, without allocating. */
+        public void copyFrom(@NonNull final DetectionResult other) {
+            for (var i = 0; i < other.size; ++i)
+                buffer[i].copyFrom(other.buffer[i]);
+
+            cameraIdx = other.cameraIdx;
+            size = other.size;
+        }
+
+        private void loadFaces(final CameraStream stream) {
+            final var count = (int)stream.faceCount[0];
+            for (int i = 0; i < count; ++i) {
+                buffer[i].setID(stream, stream.ids[i]);
+                if (USE_GALLERY_RETENTION)
+                    retention.touch(stream.ids[i], frameTime);
+            }
+
+            cameraIdx = stream.cameraIdx;
+            size = count;
+        }
+    }
+
+    /**
+     * Receives results of pipelined frame processing, called on the pipeline thread.
+     */
+    public interface DetectionListener {
+        void onDetectionResult(@NonNull DetectionResult result);
+    }
+
+    /**
+     * Per-camera state: converter, FSDK image and detection results of a single camera stream.
+     * All streams feed the same tracker under their own camera index, so a person enrolled on one camera is recognized on the others.
+     * A stream processes one frame at a time, different streams may be processed concurrently.
+     */
+    public static class CameraStream {
+
+        private final long cameraIdx;
+        private final long[] faceCount = { 0 };
+        private final long[] ids = new long[MAX_FACES];
+        private final FSDK.HImage image = new FSDK.HImage();
+        private final YUVToRGBConverter converter = new YUVToRGBConverter(USE_PARALLEL_CONVERSION
+            ? YUVToRGBConverter.Mode.PARALLEL
+            : YUVToRGBConverter.Mode.SINGLE_PASS);
+
+        /* Tracker works on downscaled frames, face coordinates are multiplied by these to map them back to the full frame. */
+        private float frameScaleX = 1.f;
+        private float frameScaleY = 1.f;
+
+        /* Create two Detection results and alternate between them to save reallocations */
+        private int bufferIndex = 0;
+        private final DetectionResult[] detectionResults = { new DetectionResult(), new DetectionResult() };
+
+        /* Frame and result of the feed in progress, handed to the tracker thread by the reused command. */
+        private FramePipeline.Frame feedFrame = null;
+        private DetectionResult feedResult = null;
+        private final TrackerThread.FrameCommand feedCommand = new TrackerThread.FrameCommand() {
+            @Override
+            protected void run() {
+                feedTracker();
+            }
+        };
+
+        /**
+         * @param cameraIdx Tracker camera index, must be unique among the streams fed at the same time.
+         */
+        public CameraStream(final long cameraIdx) {
+            this.cameraIdx = cameraIdx;
+            converter.setDownscale(FRAME_DOWNSCALE_FILTER, DETECTION_PATCH_SIZE);
+        }
+
+        public long getCameraIdx() {
+            return cameraIdx;
+        }
+
+        /**
+         * First stage of frame processing: converts the camera frame into an upright image ready to be loaded into FSDK.
+         * The image is written into the pixel buffer of the frame, several frames of a stream may be in flight at once.
+         */
+        public void convert(@NonNull final ImageProxy imageProxy, @NonNull final FramePipeline.Frame frame) {
+            /* Chroma is only needed for liveness, switch the converter back to color as soon as liveness is enabled. */
+            converter.setGrayscale(USE_GRAYSCALE_WITHOUT_LIVENESS && !enableLiveness);
 
-            size = (int)faceCount[0];
+            /* Converter writes the frame already upright, so it is loaded once without a native rotation. */
+            frame.convert(converter, imageProxy, imageProxy.getImageInfo().getRotationDegrees(), false);
+        }
+
+        /**
+         * Second stage of frame processing: feeds the converted frame to the tracker and collects detected faces.
+         * Results alternate between two buffers, so the returned one stays valid until the next but one frame of this stream.
+         */
+        @NonNull
+        public DetectionResult feed(@NonNull final FramePipeline.Frame frame) {
+            FSDK.LoadImageFromBuffer(image, frame.getPixels(), frame.getWidth(), frame.getHeight(), frame.getWidth() * frame.getBytesPerPixel(),
+                frame.isGrayscale() ? grayscaleImageMode : rgbImageMode);
+
+            feedFrame = frame;
+            feedResult = detectionResults[(bufferIndex += 1) % detectionResults.length];
+
+            /* Tracker is shared between the streams, only loading and freeing of images runs on the calling thread. */
+            trackerThread.runFrame(feedCommand);
+
+            FSDK.FreeImage(image);
+
+            return feedResult;
+        }
+
+        /* Runs on the tracker thread. */
+        private void feedTracker() {
+            frameScaleX = feedFrame.getScaleX();
+            frameScaleY = feedFrame.getScaleY();
+
+            FSDK.FeedFrame(tracker, cameraIdx, image, faceCount, ids);
+            frameNumber += 1;
+            frameTime = SystemClock.elapsedRealtime();
+            feedResult.loadFaces(this);
+
+            if (frameNumber % ID_CACHE_SWEEP_INTERVAL == 0)
+                sweepCachedIDs();
+
+            if (USE_GALLERY_RETENTION && frameNumber % RETENTION_SWEEP_INTERVAL == 0 && retention.startSweep(frameTime))
+                runMaintenance(retention);
+
+            if (USE_TEMPLATE_BUDGET && frameNumber % TEMPLATE_BUDGET_INTERVAL == 0 && templateBudget.start())
+                runMaintenance(templateBudget);
+
+            if (USE_GALLERY_INDEX && frameNumber - gallerySyncFrame >= GALLERY_SYNC_INTERVAL)
+                markSeenIDsChanged();
         }
     }
 
@@ -207,6 +473,15 @@ public class FacesProcessor {
             this.similarity = similarity;
         }
 
+        /* Takes the best candidate of the identification, which has found at least one. */
+        private MatchingResult(final IdentificationResult result) {
+            this.name = result.getName(0);
+            this.error = FSDK.FSDKE_OK;
+            this.similarity = new FSDK.IDSimilarity();
+            this.similarity.ID = result.getID(0);
+            this.similarity.similarity = result.getSimilarity(0);
+        }
+
         public int getError() {
             return error;
         }
@@ -233,19 +508,177 @@ public class FacesProcessor {
         }
     }
 
-    private static final long[] faceCount = { 0 };
-    private static final long[] ids = new long[MAX_FACES];
+    /**
+     * Caller owned holder of the top K candidates found by identify, K being the capacity of the holder.
+     * Every buffer identification needs is allocated once with the holder, including the tracker commands,
+     * so identifying repeatedly into the same holder allocates nothing. A holder is used by one thread at a time.
+     */
+    public static class IdentificationResult {
+
+        private final long[] ids;
+        private final float[] similarities;
+        private final String[] names;
+        private int count = 0;
+        private int error = FSDK.FSDKE_OK;
+
+        private final FSDK.FSDK_FaceTemplate faceTemplate = new FSDK.FSDK_FaceTemplate();
+
+        /* Query of the identification in progress. */
+        private FSDK.FSDK_FaceTemplate query = null;
+
+        /* Output of TrackerMatchFaces. */
+        private final FSDK.IDSimilarity[] buffer;
+        private final long[] bufferCount = { 0 };
+
+        /* Tracker work of an identification is queued behind frames like any command, reusing these. */
+        private final TrackerThread.FrameCommand matchCommand = new TrackerThread.FrameCommand() {
+            @Override
+            protected void run() {
+                error = FSDK.TrackerMatchFaces(tracker, query, MATCH_THRESHOLD, buffer, bufferCount);
+                count = error == FSDK.FSDKE_OK ? (int)Math.min(bufferCount[0], ids.length) : 0;
+
+                for (var i = 0; i < count; ++i) {
+                    ids[i] = buffer[i].ID;
+                    similarities[i] = buffer[i].similarity;
+                }
+
+                loadNames();
+            }
+        };
+
+        private final TrackerThread.FrameCommand namesCommand = new TrackerThread.FrameCommand() {
+            @Override
+            protected void run() {
+                loadNames();
+            }
+        };
+
+        /**
+         * @param capacity Maximal number of candidates reported, K.
+         */
+        public IdentificationResult(final int capacity) {
+            ids = new long[capacity];
+            similarities = new float[capacity];
+            names = new String[capacity];
+
+            buffer = new FSDK.IDSimilarity[capacity];
+            for (var i = 0; i < capacity; ++i)
+                buffer[i] = new FSDK.IDSimilarity();
+        }
+
+        /* Runs on the tracker thread. */
+        private void loadNames() {
+            for (var i = 0; i < count; ++i)
+                names[i] = getCachedName(ids[i]);
+
+            /* Don't keep names of earlier identifications alive. */
+            for (var i = count; i < names.length && names[i] != null; ++i)
+                names[i] = null;
+        }
+
+        public int getCapacity() {
+            return ids.length;
+        }
+
+        /** Number of candidates found, the most similar first. */
+        public int getCount() {
+            return count;
+        }
+
+        public int getError() {
+            return error;
+        }
+
+        public boolean isError() {
+            return error != FSDK.FSDKE_OK;
+        }
+
+        public long getID(final int index) {
+            return ids[index];
+        }
+
+        public float getSimilarity(final int index) {
+            return similarities[index];
+        }
+
+        @NonNull
+        public String getName(final int index) {
+            return names[index];
+        }
+
+        /** Template buffer that can be filled with the query, e.g. by GetFaceTemplate, and passed to identify. */
+        @NonNull
+        public FSDK.FSDK_FaceTemplate getFaceTemplate() {
+            return faceTemplate;
+        }
+    }
+
+    /* The tracker is used on the tracker thread only, see TrackerThread. */
     private static final FSDK.HTracker tracker = new FSDK.HTracker();
-    private static final YUVToRGBConverter yuvToRGBConverter = new YUVToRGBConverter();
+    private static final TrackerThread trackerThread = new TrackerThread();
+    private static final TrackerPersistence persistence = new TrackerPersistence();
+
+    /** Journal records that trigger a snapshot of tracker memory, which then replaces them. */
+    private static final int JOURNAL_CHECKPOINT_RECORDS = 64;
+
+    /** Copy of the tracker's templates for identification off the tracker thread. */
+    private static final GalleryIndex galleryIndex = new GalleryIndex(Runtime.getRuntime().availableProcessors());
+
+    /** Frames between gallery index syncs of the IDs seen meanwhile, about a second at 30 FPS. The tracker learns templates of tracked faces. */
+    private static final int GALLERY_SYNC_INTERVAL = 30;
+
+    /* Frame of the last gallery index sync, on the tracker thread. */
+    private static long gallerySyncFrame = 0;
+
+    /* Loaded tracker memory file and its journal, set on the tracker thread once loaded. */
+    private static File memoryFile = null;
+    private static TrackerJournal journal = null;
+
+    /** Number of distinct liveness error descriptions kept, the tracker reports a handful of them. */
+    private static final int MAX_LIVENESS_ERRORS = 32;
+
+    /** Frames between reloads of cached facial attributes. Attributes change smoothly, so a few frames of delay are not visible. */
+    private static final int ATTRIBUTE_REFRESH_INTERVAL = 4;
+
+    /** Frames between reloads of cached names. The tracker may rename an ID when merging it with another one. */
+    private static final int NAME_REFRESH_INTERVAL = 30;
+
+    /** Frames between checks of cached IDs that are out of view for reassignment and expiry. */
+    private static final int ID_CACHE_SWEEP_INTERVAL = 8;
+
+    /** Frames an ID stays cached after it was last seen. */
+    private static final int ID_CACHE_EXPIRY = 300;
+
+    /* Candidate buffers of matchFace. */
+    private static final IdentificationResult matchingResult = new IdentificationResult(1);
+    private static final TemplateExtractor matchingExtractor = new TemplateExtractor();
+
+    /* Templates of photos already seen, null until initialized. */
+    private static volatile TemplateCache templateCache = null;
+
+    /* Cached tracker IDs, frame counter and buffers for attribute retrieval, accessed on the tracker thread only. */
+    private static final LongSparseArray<CachedID> cachedIDs = new LongSparseArray<>();
+    private static final String[] attributeValue = { "" };
+    private static final AttributeParser attributeParser = new AttributeParser(MAX_LIVENESS_ERRORS);
+    private static final long[] reassignedID = { 0 };
+    private static long frameNumber = 0;
+
     private static final FSDK.FSDK_IMAGEMODE rgbImageMode = new FSDK.FSDK_IMAGEMODE() {{ mode = FSDK.FSDK_IMAGEMODE.FSDK_IMAGE_COLOR_24BIT; }};
+    private static final FSDK.FSDK_IMAGEMODE grayscaleImageMode = new FSDK.FSDK_IMAGEMODE() {{ mode = FSDK.FSDK_IMAGEMODE.FSDK_IMAGE_GRAYSCALE_8BIT; }};
+
+    /* Stream of the single camera used by accept and submit, additional cameras are served by MultiCameraProcessor. */
+    private static final CameraStream defaultStream = new CameraStream(0);
 
-    /* Create two Detection results and alternate between them to save reallocations */
-    private static int bufferIndex = 0;
-    private static final DetectionResult[] detectionResults = { new DetectionResult(), new DetectionResult() };
+    /* Frame used by accept, pipelined processing uses a pool of frames instead. */
+    private static final FramePipeline.Frame frame = new FramePipeline.Frame();
+
+    /** Number of pooled frames in pipelined processing: one being converted, one being tracked and one waiting in between. */
+    private static final int PIPELINE_DEPTH = 3;
+
+    private static FramePipeline pipeline = null;
+    private static volatile DetectionListener detectionListener = null;
 
     private static String assetsPath = "";
-    private static FSDK.HImage image = new FSDK.HImage();
-    private static FSDK.HImage rotatedImage = new FSDK.HImage();
 
     /* FaceSDK library is activated here */
     public static boolean initialize(final Application application, final String assetsPath) {
@@ -258,10 +691,18 @@ public class FacesProcessor {
         FSDK.PrepareData(application);
 
         FacesProcessor.assetsPath = assetsPath;
+        templateCache = new TemplateCache(new File(application.getCacheDir(), "templates"), DETECTION_VERSION);
         return true;
     }
 
-    private static String getNameForID(final long id) {
+    /** Cache of templates extracted from photos, null before initialize. */
+    @Nullable
+    public static TemplateCache getTemplateCache() {
+        return templateCache;
+    }
+
+    /* Runs on the tracker thread. */
+    static String getNameForID(final long id) {
         final String[] value = { "" };
         FSDK.LockID(tracker, id);
         FSDK.GetName(tracker, id, value, MAX_NAME_SIZE);
@@ -269,11 +710,59 @@ public class FacesProcessor {
         return value[0];
     }
 
+    /* Name of the ID, from the cache while the ID is being tracked. Runs on the tracker thread. */
+    private static String getCachedName(final long id) {
+        final var cached = cachedIDs.get(id);
+        return cached != null && cached.name != null ? cached.name : getNameForID(id);
+    }
+
+    /* Runs on the tracker thread. */
+    private static CachedID getCachedID(final long cameraIdx, final long id) {
+        var cached = cachedIDs.get(id);
+
+        if (cached == null) {
+            cached = new CachedID();
+            cachedIDs.put(id, cached);
+        }
+
+        cached.update(cameraIdx, id);
+        return cached;
+    }
+
+    /* Runs on the tracker thread. */
+    private static void invalidateCachedID(final long id) {
+        cachedIDs.remove(id);
+    }
+
+    /**
+     * Drops cached IDs that have not been seen for a while, and those the tracker has merged into other IDs.
+     * The name of the ID that took over may have changed, so it is reloaded as well. Runs on the tracker thread.
+     */
+    private static void sweepCachedIDs() {
+        /* Iterating backwards keeps the indices of the remaining entries valid while removing. */
+        for (var i = cachedIDs.size() - 1; i >= 0; --i) {
+            final var cached = cachedIDs.valueAt(i);
+            if (cached.seenFrame == frameNumber)
+                continue;
+
+            final var id = cachedIDs.keyAt(i);
+            if (FSDK.GetIDReassignment(tracker, id, reassignedID) == FSDK.FSDKE_OK && reassignedID[0] != id) {
+                final var survivor = cachedIDs.get(reassignedID[0]);
+                if (survivor != null)
+                    survivor.name = null;
+
+                cachedIDs.removeAt(i);
+            } else if (frameNumber - cached.seenFrame > ID_CACHE_EXPIRY) {
+                cachedIDs.removeAt(i);
+            }
+        }
+    }
+
     private static void setTrackerParameters() {
         var parameters = USE_NEW_DETECTION
             /* FaceDetection2PatchSize sets the image size used for face detection. Lower values increase performance, but decrease accuracy
             * Threshold and Threshold2 control face matching, new recognition uses lower threshold (values as low as 0.7 work well), compared to the default one. */
-            ? "FaceDetection2PatchSize=256;Threshold=0.8;Threshold2=0.9"
+            ? "FaceDetection2PatchSize=" + DETECTION_PATCH_SIZE + ";Threshold=0.8;Threshold2=0.9"
             : "HandleArbitraryRotations=false;DetermineFaceRotationAngle=false;InternalResizeWidth=256;FaceDetectionThreshold=5";
 
         if (enableLiveness)
@@ -298,99 +787,660 @@ public class FacesProcessor {
         return USE_IBETA_LIVENESS_ADDON;
     }
 
-    public static boolean toggleLiveness() {
-        FSDK.SetTrackerParameter(tracker, "DetectLiveness", enableLiveness ? "false" : "true");
-        return enableLiveness = !enableLiveness;
+    /**
+     * Switches liveness detection on or off in between frames. Returns right away, the listener receives whether
+     * liveness is enabled afterwards.
+     */
+    @NonNull
+    public static Future<Boolean> toggleLiveness(@Nullable final CommandListener<Boolean> listener) {
+        return submit(() -> {
+            FSDK.SetTrackerParameter(tracker, "DetectLiveness", enableLiveness ? "false" : "true");
+
+            /* Attributes were not updated while liveness was off. */
+            for (var i = 0; i < cachedIDs.size(); ++i)
+                cachedIDs.valueAt(i).invalidateAttributes();
+
+            return enableLiveness = !enableLiveness;
+        }, listener);
     }
 
+    /**
+     * Loads tracker memory saved by save or saveAsync, or by SaveTrackerMemoryToFile in earlier versions of the app,
+     * then replays the gallery changes journaled after it was saved. A missing or damaged file starts an empty tracker.
+     * Blocks, see loadAsync.
+     *
+     * @return False if the memory was saved with a different detection version. It is not loaded then, and the file
+     * is renamed to keep it from being overwritten by the next save.
+     */
     public static boolean load(final File file) {
-        if (FSDK.LoadTrackerMemoryFromFile(tracker, file.getAbsolutePath()) != FSDK.FSDKE_OK) {
-            FSDK.CreateTracker(tracker);
-            clear();
+        final var journalFile = new File(file.getPath() + ".journal");
+        TrackerSnapshot snapshot = null;
+
+        /* Header and body are read and verified on the calling thread, the tracker thread only gets a verified buffer. */
+        try (final var input = new RandomAccessFile(file, "r")) {
+            final var channel = input.getChannel();
+            snapshot = TrackerSnapshot.readHeader(channel);
+
+            if (snapshot != null && snapshot.getDetectionVersion() != DETECTION_VERSION) {
+                Log.e("luxand_fsdk", "Tracker memory has detection version " + snapshot.getDetectionVersion() + ", expected " + DETECTION_VERSION);
+                setAside(file, ".detection" + snapshot.getDetectionVersion());
+                setAside(journalFile, ".detection" + snapshot.getDetectionVersion());
+                createEmptyTracker();
+                startJournal(file, journalFile, 0);
+                return false;
+            }
 
-            return true;
+            if (snapshot != null)
+                snapshot.readBody(channel);
+        } catch (FileNotFoundException e) {
+            /* The app may have been killed before the first snapshot, the journal alone recreates the changes. */
+            createEmptyTracker();
+            return startJournal(file, journalFile, 0);
+        } catch (IOException e) {
+            Log.e("luxand_fsdk", "Error while reading tracker memory", e);
+            setAside(file, ".damaged");
+            setAside(journalFile, ".damaged");
+            createEmptyTracker();
+            return startJournal(file, journalFile, 0);
         }
 
-        setTrackerParameters();
+        final var body = snapshot == null ? null : snapshot.getBody();
 
-        final String[] value = { "" };
-        FSDK.GetTrackerParameter(tracker, "DetectionVersion", value, 16);
+        final boolean detectionVersionMatches = trackerThread.call(() -> {
+            /* Files without a snapshot header are raw tracker memory. */
+            final var loaded = (body != null
+                ? FSDK.LoadTrackerMemoryFromBuffer(tracker, body)
+                : FSDK.LoadTrackerMemoryFromFile(tracker, file.getAbsolutePath())) == FSDK.FSDKE_OK;
 
-        /* Return False if detection version of loaded tracker memory doesn't match.
-        * Using tracker with a wrong detection version is not allowed and leads to incorrect results. */
-        return USE_NEW_DETECTION
-            ? Integer.parseInt(value[0]) == 2
-            : Integer.parseInt(value[0]) == 1;
-    }
+            if (!loaded) {
+                FSDK.CreateTracker(tracker);
+                resetTracker();
+                return true;
+            }
 
-    public static void clear() {
-        synchronized (tracker) {
-            FSDK.ClearTracker(tracker);
-            if (USE_NEW_DETECTION)
-                FSDK.SetTrackerParameter(tracker, "DetectionVersion", "2");
+            /* Cached names belong to the previous tracker memory. */
+            cachedIDs.clear();
+            galleryIndex.clear();
+            retention.clear();
+            ++maintenanceGeneration;
             setTrackerParameters();
+
+            /* Raw tracker memory has no header, its detection version is only known after loading. */
+            final String[] value = { "" };
+            FSDK.GetTrackerParameter(tracker, "DetectionVersion", value, 16);
+
+            /* Return False if detection version of loaded tracker memory doesn't match.
+            * Using tracker with a wrong detection version is not allowed and leads to incorrect results. */
+            return Integer.parseInt(value[0]) == DETECTION_VERSION;
+        });
+
+        if (!detectionVersionMatches)
+            return false;
+
+        return startJournal(file, journalFile, snapshot == null ? 0 : snapshot.getJournalSequence());
+    }
+
+    /* Replays journal records newer than the snapshot and continues the journal after them. Returns true. */
+    private static boolean startJournal(final File file, final File journalFile, final long snapshotSequence) {
+        final var records = new ArrayList<TrackerJournal.Record>();
+        long lastSequence;
+        try {
+            lastSequence = TrackerJournal.recover(journalFile, snapshotSequence, records::add);
+        } catch (IOException e) {
+            Log.e("luxand_fsdk", "Error while reading tracker journal", e);
+            lastSequence = snapshotSequence;
         }
+
+        final var journalSequence = lastSequence;
+        trackerThread.call(() -> {
+            /* IDs are assigned anew when recreated, later records refer to them by their original IDs. IDs of the snapshot keep theirs. */
+            final var replayedIDs = new LongSparseArray<Long>();
+            if (!records.isEmpty()) {
+                for (final var id : getAllIDs())
+                    replayedIDs.put(id, id);
+            }
+
+            for (final var record : records)
+                replayJournalRecord(record, replayedIDs);
+
+            /* The index was emptied with the tracker, and replayed records don't go through it. */
+            if (USE_GALLERY_INDEX)
+                galleryIndex.markAllChanged();
+            syncGalleryIndex();
+
+            memoryFile = file;
+            journal = new TrackerJournal(journalFile, journalSequence, getAllIDs());
+            persistence.setJournal(journal);
+            return null;
+        });
+
+        /* Checkpoint right away, the snapshot takes in the replayed records. */
+        if (!records.isEmpty() || journalFile.exists())
+            persistence.requestSave(file);
+
+        return true;
     }
 
-    public static void save(final File file) {
-        FSDK.SaveTrackerMemoryToFile(tracker, file.getAbsolutePath());
+    /* Runs on the tracker thread. */
+    private static void replayJournalRecord(final TrackerJournal.Record record, final LongSparseArray<Long> replayedIDs) {
+        /* IDs neither in the snapshot nor created by an earlier record were learned by tracking after the snapshot. Their
+         * original numbers may have been given to IDs recreated by this replay, so they are never used as they are. */
+        final var id = replayedIDs.get(record.getID(), -1L);
+
+        switch (record.getType()) {
+            case TrackerJournal.CREATE_ID:
+                recreateID(record, replayedIDs);
+                break;
+
+            case TrackerJournal.ADD_TEMPLATES:
+                /* The journal records changes to such IDs as CREATE_ID, but a checkpoint that failed to save may have
+                 * left records for IDs missing from the snapshot. Their templates make up a new ID rather than being lost. */
+                if (id < 0) {
+                    recreateID(record, replayedIDs);
+                    break;
+                }
+
+                for (final var template : record.getTemplates())
+                    addTemplate(id, template);
+                break;
+
+            case TrackerJournal.SET_NAME:
+                if (id >= 0 && hasID(id))
+                    FSDK.SetName(tracker, id, record.getName());
+                else
+                    recreateID(record, replayedIDs);
+                break;
+
+            case TrackerJournal.PURGE_ID:
+                if (id >= 0)
+                    FSDK.PurgeID(tracker, id);
+                replayedIDs.remove(record.getID());
+                break;
+
+            case TrackerJournal.CLEAR:
+                resetTracker();
+                replayedIDs.clear();
+                break;
+
+            default:
+                Log.e("luxand_fsdk", "Unknown tracker journal record type " + record.getType());
+        }
     }
 
-    @NonNull
-    public static DetectionResult accept(final ImageProxy imageProxy) {
-        FSDK.LoadImageFromBuffer(image, yuvToRGBConverter.convert(imageProxy), imageProxy.getWidth(), imageProxy.getHeight(), imageProxy.getWidth() * 3, rgbImageMode);
+    /* Runs on the tracker thread. */
+    private static void recreateID(final TrackerJournal.Record record, final LongSparseArray<Long> replayedIDs) {
+        final var templates = record.getTemplates();
+        if (templates.length == 0)
+            return;
 
-        final var rotation = imageProxy.getImageInfo().getRotationDegrees();
-        if (rotation != 0) {
-            FSDK.CreateEmptyImage(rotatedImage);
-            FSDK.RotateImage90(image, rotation / 90, rotatedImage);
-            FSDK.FreeImage(image);
+        final var faceTemplate = new FSDK.FSDK_FaceTemplate();
+        faceTemplate.template = templates[0];
 
-            final var newImage = rotatedImage;
-            rotatedImage = image;
-            image = newImage;
+        final var id = new long[1];
+        final var faceID = new long[1];
+        if (FSDK.TrackerCreateID(tracker, faceTemplate, id, faceID) != FSDK.FSDKE_OK) {
+            Log.e("luxand_fsdk", "Cannot recreate ID " + record.getID() + " from the tracker journal");
+            return;
         }
 
-        final var result = detectionResults[(bufferIndex += 1) % detectionResults.length];
+        for (var i = 1; i < templates.length; ++i)
+            addTemplate(id[0], templates[i]);
+
+        if (!record.getName().isEmpty())
+            FSDK.SetName(tracker, id[0], record.getName());
+
+        replayedIDs.put(record.getID(), id[0]);
+    }
+
+    /* Runs on the tracker thread. */
+    private static void addTemplate(final long id, final byte[] template) {
+        final var faceTemplate = new FSDK.FSDK_FaceTemplate();
+        faceTemplate.template = template;
+        FSDK.AddTrackerFaceTemplate(tracker, id, faceTemplate, new long[1]);
+    }
+
+    /* Runs on the tracker thread. */
+    private static long[] getAllIDs() {
+        final var count = new long[1];
+        if (FSDK.GetTrackerIDsCount(tracker, count) != FSDK.FSDKE_OK || count[0] == 0)
+            return new long[0];
+
+        final var ids = new long[(int)count[0]];
+        return FSDK.GetTrackerAllIDs(tracker, ids) == FSDK.FSDKE_OK ? ids : new long[0];
+    }
+
+    /* Runs on the tracker thread. */
+    private static boolean hasID(final long id) {
+        final var count = new long[1];
+        return FSDK.GetTrackerFaceIDsCountForID(tracker, id, count) == FSDK.FSDKE_OK && count[0] > 0;
+    }
 
-        synchronized (tracker) {
-            FSDK.FeedFrame(tracker, 0, image, faceCount, ids);
-            result.loadFaces();
+    /* Face templates of the ID, as stored by the tracker. Runs on the tracker thread. */
+    static byte[][] getTemplatesForID(final long id) {
+        final var count = new long[1];
+        if (FSDK.GetTrackerFaceIDsCountForID(tracker, id, count) != FSDK.FSDKE_OK || count[0] == 0)
+            return new byte[0][];
+
+        final var faceIDs = new long[(int)count[0]];
+        if (FSDK.GetTrackerFaceIDsForID(tracker, id, faceIDs) != FSDK.FSDKE_OK)
+            return new byte[0][];
+
+        final var templates = new ArrayList<byte[]>(faceIDs.length);
+        for (final var faceID : faceIDs) {
+            final var faceTemplate = new FSDK.FSDK_FaceTemplate();
+            if (FSDK.GetTrackerFaceTemplate(tracker, faceID, faceTemplate) == FSDK.FSDKE_OK)
+                templates.add(faceTemplate.template);
         }
 
-        FSDK.FreeImage(image);
+        return templates.toArray(new byte[0][]);
+    }
+
+    /* Starts syncing the IDs marked as changed with the gallery index, unless a sync is running already. Runs on the tracker thread. */
+    private static void syncGalleryIndex() {
+        if (!USE_GALLERY_INDEX)
+            return;
+
+        final var task = galleryIndex.startSync();
+        if (task != null)
+            runMaintenance(task);
+    }
+
+    /* Marks the IDs seen since the last sync, the tracker may have learned their templates, and syncs them. Runs on the tracker thread. */
+    private static void markSeenIDsChanged() {
+        for (var i = 0; i < cachedIDs.size(); ++i) {
+            if (cachedIDs.valueAt(i).seenFrame > gallerySyncFrame)
+                galleryIndex.markChanged(cachedIDs.keyAt(i));
+        }
+
+        gallerySyncFrame = frameNumber;
+        syncGalleryIndex();
+    }
+
+    /* Journals a change just applied to the tracker and checkpoints once enough changes pile up. Runs on the tracker thread. */
+    private static void addJournalRecord(final byte type, final long id, final String name, final byte[][] templates) {
+        if (journal == null)
+            return;
+
+        /* Replay can't find an ID learned by tracking since the snapshot, templates added to it go with the whole ID. */
+        if (type == TrackerJournal.ADD_TEMPLATES && !journal.isReplayable(id))
+            journal.add(new TrackerJournal.Record(TrackerJournal.CREATE_ID, id, getNameForID(id), getTemplatesForID(id)));
+        else
+            journal.add(new TrackerJournal.Record(type, id, name, templates));
+        persistence.requestJournalFlush();
+
+        if (journal.getRecordsSinceCheckpoint() >= JOURNAL_CHECKPOINT_RECORDS)
+            persistence.requestSave(memoryFile);
+    }
+
+    /**
+     * Creates an ID from the face template and names it. The change is journaled.
+     *
+     * @return New ID, -1 on error.
+     */
+    public static long createID(final FSDK.FSDK_FaceTemplate faceTemplate, final String name) {
+        return trackerThread.call(() -> {
+            final var id = new long[1];
+            final var faceID = new long[1];
+            if (FSDK.TrackerCreateID(tracker, faceTemplate, id, faceID) != FSDK.FSDKE_OK)
+                return -1L;
+
+            if (!name.isEmpty())
+                FSDK.SetName(tracker, id[0], name);
+
+            if (USE_GALLERY_INDEX)
+                galleryIndex.add(id[0], faceID[0], faceTemplate.template);
+
+            addJournalRecord(TrackerJournal.CREATE_ID, id[0], name, new byte[][] { faceTemplate.template.clone() });
+            return id[0];
+        });
+    }
+
+    /** Adds the face template to the ID. The change is journaled. */
+    public static int addTemplate(final long id, final FSDK.FSDK_FaceTemplate faceTemplate) {
+        return trackerThread.call(() -> {
+            final var faceID = new long[1];
+            final var result = FSDK.AddTrackerFaceTemplate(tracker, id, faceTemplate, faceID);
+            if (result == FSDK.FSDKE_OK) {
+                if (USE_GALLERY_INDEX)
+                    galleryIndex.add(id, faceID[0], faceTemplate.template);
+
+                addJournalRecord(TrackerJournal.ADD_TEMPLATES, id, "", new byte[][] { faceTemplate.template.clone() });
+            }
+
+            return result;
+        });
+    }
+
+    /** Removes the ID with its templates from the tracker. The change is journaled. */
+    public static int purgeID(final long id) {
+        return trackerThread.call(() -> {
+            final var result = FSDK.PurgeID(tracker, id);
+            if (result == FSDK.FSDKE_OK) {
+                if (USE_GALLERY_INDEX)
+                    galleryIndex.removeID(id);
+
+                addJournalRecord(TrackerJournal.PURGE_ID, id, "", new byte[0][]);
+            }
+
+            invalidateCachedID(id);
+            return result;
+        });
+    }
+
+    /**
+     * Moves the templates of the duplicate ID to the survivor and purges the duplicate, the survivor keeps its name.
+     * The changes are journaled.
+     *
+     * @return Number of templates moved.
+     */
+    public static int mergeIDs(final long survivor, final long duplicate) {
+        return trackerThread.call(() -> {
+            final var templates = getTemplatesForID(duplicate);
+            final var faceTemplate = new FSDK.FSDK_FaceTemplate();
+            final var faceID = new long[1];
+            final var moved = new ArrayList<byte[]>(templates.length);
+
+            for (final var template : templates) {
+                faceTemplate.template = template;
+                if (FSDK.AddTrackerFaceTemplate(tracker, survivor, faceTemplate, faceID) != FSDK.FSDKE_OK)
+                    continue;
+
+                if (USE_GALLERY_INDEX)
+                    galleryIndex.add(survivor, faceID[0], template);
+                moved.add(template);
+            }
+
+            if (!moved.isEmpty())
+                addJournalRecord(TrackerJournal.ADD_TEMPLATES, survivor, "", moved.toArray(new byte[0][]));
 
-        return result;
+            purgeID(duplicate);
+            return moved.size();
+        });
     }
 
+    /**
+     * Replaces the ID with a new one having only the given templates and the same name, then purges the old ID.
+     * The tracker can't remove single templates of an ID, this is how they are dropped. The changes are journaled.
+     *
+     * @param templateCount Number of templates of the ID the given ones were selected from. If the ID has been purged
+     *                      or has had templates added since, nothing is changed.
+     * @return New ID, -1 if the ID has changed or on error, the old ID is kept then.
+     */
+    public static long rebuildID(final long id, final long templateCount, @NonNull final byte[][] templates) {
+        if (templates.length == 0)
+            return -1;
+
+        return trackerThread.call(() -> {
+            final var count = new long[1];
+            if (FSDK.GetTrackerFaceIDsCountForID(tracker, id, count) != FSDK.FSDKE_OK || count[0] != templateCount)
+                return -1L;
+
+            final var name = getNameForID(id);
+            final var faceTemplate = new FSDK.FSDK_FaceTemplate();
+            final var newID = new long[1];
+            final var faceID = new long[1];
+
+            faceTemplate.template = templates[0];
+            if (FSDK.TrackerCreateID(tracker, faceTemplate, newID, faceID) != FSDK.FSDKE_OK)
+                return -1L;
+
+            if (USE_GALLERY_INDEX)
+                galleryIndex.add(newID[0], faceID[0], templates[0]);
+
+            for (var i = 1; i < templates.length; ++i) {
+                faceTemplate.template = templates[i];
+                if (FSDK.AddTrackerFaceTemplate(tracker, newID[0], faceTemplate, faceID) == FSDK.FSDKE_OK && USE_GALLERY_INDEX)
+                    galleryIndex.add(newID[0], faceID[0], templates[i]);
+            }
+
+            if (!name.isEmpty())
+                FSDK.SetName(tracker, newID[0], name);
+
+            addJournalRecord(TrackerJournal.CREATE_ID, newID[0], name, templates);
+            purgeID(id);
+            return newID[0];
+        });
+    }
+
+    /** Time a maintenance step may take before frames get their turn. */
+    private static final long MAINTENANCE_STEP_NS = 2_000_000L;
+
+    /* Changed on the tracker thread when the tracker memory is cleared or replaced, cancelling maintenance started before. */
+    private static volatile int maintenanceGeneration = 0;
+
+    /**
+     * Runs the task on the tracker thread in steps of MAINTENANCE_STEP_NS, queued behind frames and other commands
+     * like any command, so live tracking never waits for more than a step. Returns right away.
+     * The task is cancelled if the tracker memory is cleared or replaced before it completes.
+     */
+    public static void runMaintenance(@NonNull final MaintenanceTask task) {
+        runMaintenance(task, maintenanceGeneration);
+    }
+
+    private static void runMaintenance(final MaintenanceTask task, final int generation) {
+        trackerThread.submit(() -> {
+            if (generation != maintenanceGeneration) {
+                task.cancel();
+                return null;
+            }
+
+            final boolean more;
+            try {
+                more = task.step(tracker, System.nanoTime() + MAINTENANCE_STEP_NS);
+            } catch (RuntimeException e) {
+                Log.e("luxand_fsdk", "Error while running maintenance task", e);
+                return null;
+            }
+
+            if (more)
+                runMaintenance(task, generation);
+            return null;
+        });
+    }
+
+    /**
+     * Receives the result of loadAsync, called on a background thread.
+     */
+    public interface LoadListener {
+        void onLoaded(boolean detectionVersionMatches);
+    }
+
+    /**
+     * Loads tracker memory on a background thread, see load. Saves requested afterwards wait for the load to complete,
+     * so an early save can't overwrite the file with an empty tracker.
+     */
+    public static void loadAsync(final File file, final LoadListener listener) {
+        persistence.submit(() -> {
+            listener.onLoaded(load(file));
+            return null;
+        });
+    }
+
+    private static void setAside(final File file, final String suffix) {
+        if (!file.exists())
+            return;
+
+        final var destination = new File(file.getPath() + suffix);
+        if (!file.renameTo(destination))
+            Log.e("luxand_fsdk", "Cannot rename " + file + " to " + destination);
+    }
+
+    private static void createEmptyTracker() {
+        trackerThread.call(() -> {
+            FSDK.CreateTracker(tracker);
+            resetTracker();
+            return null;
+        });
+    }
+
+    /* Empties the tracker and restores its parameters. Runs on the tracker thread. */
+    private static void resetTracker() {
+        FSDK.ClearTracker(tracker);
+        cachedIDs.clear();
+        galleryIndex.clear();
+        retention.clear();
+        ++maintenanceGeneration;
+        if (USE_NEW_DETECTION)
+            FSDK.SetTrackerParameter(tracker, "DetectionVersion", String.valueOf(DETECTION_VERSION));
+        setTrackerParameters();
+    }
+
+    /** Removes every ID in between frames. The change is journaled. Returns right away. */
     @NonNull
-    public static MatchingResult matchFace(final String imagePath) {
-        final var image = new FSDK.HImage();
-        var result = FSDK.LoadImageFromFile(image, imagePath);
+    public static Future<Void> clear() {
+        return trackerThread.submit(() -> {
+            resetTracker();
+            addJournalRecord(TrackerJournal.CLEAR, 0, "", new byte[0][]);
+            return null;
+        });
+    }
 
-        if (result != FSDK.FSDKE_OK)
-            return new MatchingResult(result);
+    /** Saves tracker memory and waits for the file to be written. */
+    public static void save(final File file) {
+        saveAsync(file);
+        TrackerThread.getUninterruptibly(persistence.flush());
+    }
 
-        final var faceTemplate = new FSDK.FSDK_FaceTemplate();
+    /**
+     * Saves tracker memory in the background, see TrackerPersistence. Safe to call from the UI thread.
+     */
+    public static void saveAsync(final File file) {
+        persistence.requestSave(file);
+    }
+
+    /**
+     * Command working with the tracker, see submitCommand.
+     */
+    public interface TrackerCommand<T> {
+        T run(@NonNull FSDK.HTracker tracker);
+    }
+
+    /**
+     * Receives the result of a queued command, called on the tracker thread.
+     */
+    public interface CommandListener<T> {
+        void onCompleted(T result);
+    }
+
+    /* Queues the command, the listener receives its result. */
+    private static <T> Future<T> submit(final Callable<T> command, @Nullable final CommandListener<T> listener) {
+        return trackerThread.submit(() -> {
+            final var result = command.call();
+            if (listener != null)
+                listener.onCompleted(result);
+            return result;
+        });
+    }
 
+    /**
+     * Queues the command for the tracker thread. Commands run in between frames, in the order they were submitted.
+     * The tracker must not be used outside the command.
+     */
+    @NonNull
+    public static <T> Future<T> submitCommand(@NonNull final TrackerCommand<T> command) {
+        return trackerThread.submit(() -> command.run(tracker));
+    }
+
+    @NonNull
+    public static DetectionResult accept(final ImageProxy imageProxy) {
+        defaultStream.convert(imageProxy, frame);
+        return defaultStream.feed(frame);
+    }
+
+    /**
+     * Pipelined alternative to accept: converts the frame on the calling thread and returns, the listener receives
+     * the detection result once the tracker has processed the frame. Frames are dropped when the tracker falls behind.
+     * The image can be closed as soon as this returns.
+     *
+     * @return False if the frame was dropped.
+     */
+    public static boolean submit(final ImageProxy imageProxy, final DetectionListener listener) {
+        detectionListener = listener;
+
+        if (pipeline == null)
+            pipeline = new FramePipeline(PIPELINE_DEPTH, FramePipeline.DropPolicy.DROP_OLDEST, defaultStream::convert, (frame) -> {
+                final var result = defaultStream.feed(frame);
+                final var listenerToNotify = detectionListener;
+                if (listenerToNotify != null)
+                    listenerToNotify.onDetectionResult(result);
+            });
+
+        return pipeline.submit(imageProxy);
+    }
+
+    /** Extracts the template of the face on the image with the detection the tracker uses. Thread safe. */
+    public static int getFaceTemplate(@NonNull final FSDK.HImage image, @NonNull final FSDK.FSDK_FaceTemplate faceTemplate) {
         /* Functions utilizing new detection usually have 2 attached to them.
         * Using incorrect functions will lead to undefined behaviour. */
-        result = USE_NEW_DETECTION
+        return USE_NEW_DETECTION
             ? FSDK.GetFaceTemplate2(image, faceTemplate)
             : FSDK.GetFaceTemplate(image, faceTemplate);
+    }
 
-        if (result != FSDK.FSDKE_OK)
-            return new MatchingResult(result);
+    /**
+     * Finds up to result.getCapacity() IDs most similar to the face template, with their similarities and names.
+     * Nothing is allocated when the result holder is reused.
+     *
+     * @return FSDK error code, also stored in the result.
+     */
+    public static int identify(@NonNull final FSDK.FSDK_FaceTemplate faceTemplate, @NonNull final IdentificationResult result) {
+        result.query = faceTemplate;
+        try {
+            if (!USE_GALLERY_INDEX) {
+                trackerThread.runCommand(result.matchCommand);
+                return result.error;
+            }
 
-        final var count = new long[1];
-        final var buffer = new FSDK.IDSimilarity[1];
+            /* Matching runs on the calling thread and the index workers, frames keep going meanwhile. */
+            result.count = galleryIndex.identify(faceTemplate, MATCH_THRESHOLD, result.ids, result.similarities);
+            result.error = FSDK.FSDKE_OK;
+
+            /* Names are read from the tracker. */
+            trackerThread.runCommand(result.namesCommand);
+            return result.error;
+        } finally {
+            result.query = null;
+        }
+    }
+
+    @NonNull
+    public static MatchingResult matchFace(final String imagePath) {
+        /* Matching is done one image at a time, reusing the buffers of a single candidate holder. */
+        synchronized (matchingResult) {
+            return match(matchingExtractor.extract(ImageSource.fromFile(imagePath, new File(imagePath)), matchingResult.getFaceTemplate()));
+        }
+    }
+
+    /**
+     * Matches the photo read from the stream, e.g. of a content URI, without copying it to a file. The stream is left open.
+     *
+     * @param length Length of the stream if known, -1 otherwise.
+     */
+    @NonNull
+    public static MatchingResult matchFace(@NonNull final InputStream input, final long length) {
+        synchronized (matchingResult) {
+            return match(matchingExtractor.extract(input, length, matchingResult.getFaceTemplate()));
+        }
+    }
+
+    /** Matches the photo in the remaining bytes of the buffer. */
+    @NonNull
+    public static MatchingResult matchFace(@NonNull final ByteBuffer data) {
+        synchronized (matchingResult) {
+            return match(matchingExtractor.extract(data, matchingResult.getFaceTemplate()));
+        }
+    }
+
+    /* Identifies the template extracted into matchingResult. Called with matchingResult locked. */
+    private static MatchingResult match(final int extractionResult) {
+        if (extractionResult != FSDK.FSDKE_OK)
+            return new MatchingResult(extractionResult);
 
-        /* New face recognition uses a lower matching threshold. */
-        result = FSDK.TrackerMatchFaces(tracker, faceTemplate, USE_NEW_DETECTION ? 0.7f : 0.992f, buffer, count);
+        final var result = identify(matchingResult.getFaceTemplate(), matchingResult);
 
-        if (count[0] == 0)
+        if (matchingResult.getCount() == 0)
             return new MatchingResult(result);
 
-        return new MatchingResult(buffer[0]);
+        return new MatchingResult(matchingResult);
     }
 }
@@ -11,20 +11,22 @@ import android.graphics.Canvas;
 import android.graphics.Matrix;
 
 import androidx.annotation.NonNull;
-import androidx.annotation.StringRes;
 
-import java.util.Locale;
+import java.text.DecimalFormatSymbols;
 
 /**
  * Displays face boxes on screen.
  */
 public class FacesView extends View {
 
-    private final StringBuilder faceText = new StringBuilder();
+    /* Label text of every face, built without allocating while drawing. */
+    private final FaceLabelFormatter labelFormatter;
 
     /** Transformation matrix from image space to screen space. */
-    private Matrix facesTransform = null;
-    private FacesProcessor.DetectionResult detectionResult = new FacesProcessor.DetectionResult();
+    private volatile Matrix facesTransform = null;
+
+    /* Results published by the analysis thread for drawing on the UI thread. */
+    private final DetectionResultExchange detectionResults = new DetectionResultExchange();
 
     private static final Paint greenPaint = new Paint() {{
         setColor(Color.GREEN);
@@ -56,6 +58,11 @@ public class FacesView extends View {
         super(context, attributeSet);
 
         setWillNotDraw(false);
+
+        final var resources = getResources();
+        labelFormatter = new FaceLabelFormatter(resources.getString(R.string.live_face), resources.getString(R.string.fake_face),
+            resources.getString(R.string.low_image_quality), resources.getString(R.string.image_quality),
+            DecimalFormatSymbols.getInstance().getDecimalSeparator());
     }
 
     public Matrix getFacesTransform() {
@@ -66,66 +73,25 @@ public class FacesView extends View {
         this.facesTransform = facesTransform;
     }
 
+    /**
+     * Publishes the result for drawing. Called on the analysis thread, never blocks.
+     * The result is copied, the processor may reuse it right after the call.
+     */
     public void setDetectionResult(final FacesProcessor.DetectionResult detectionResult) {
-        /* If the transform matrix is set map faces from image space to screen space. */
-        if (facesTransform != null) {
-            for (var i = 0; i < detectionResult.getSize(); ++i) {
-                final var rect = detectionResult.getFace(i).getRect();
-                facesTransform.mapRect(rect);
-            }
-        }
+        final var result = detectionResults.getBack();
+        result.copyFrom(detectionResult);
 
-        synchronized (this) {
-            this.detectionResult = detectionResult;
+        /* If the transform matrix is set map faces from image space to screen space. */
+        final var transform = facesTransform;
+        if (transform != null) {
+            for (var i = 0; i < result.getSize(); ++i)
+                transform.mapRect(result.getFace(i).getRect());
         }
 
+        detectionResults.publish();
         postInvalidate();
     }
 
-    private static String formatString(final String format, Object... args) {
-        return String.format(Locale.getDefault(), format, args);
-    }
-
-    private String getStringResource(@StringRes final int id) {
-        return getResources().getString(id);
-    }
-
-    private static void appendString(final StringBuilder stringBuilder, final String string) {
-        if (stringBuilder.length() > 0)
-            stringBuilder.append("; ");
-
-        stringBuilder.append(string);
-    }
-
-    private boolean checkLiveness(final FacesProcessor.Face face, final StringBuilder faceText) {
-        /* Negative liveness values indicated that liveness value couldn't be obtained, i.e. not enough frames have been collected to output liveness value. */
-        if (!FacesProcessor.isLivenessEnabled() || face.getLiveness() < 0)
-            return true;
-
-        /* When using IBeta liveness addon handle errors and image quality first. */
-        if (FacesProcessor.useIBetaLivenessAddon()) {
-            if (face.getLivenessError() != null) {
-                appendString(faceText, face.getLivenessError());
-                return false;
-            }
-
-            if (face.getImageQuality() < 0.5) {
-                appendString(faceText, formatString(getStringResource(R.string.low_image_quality), face.getImageQuality()));
-                return false;
-            }
-
-            appendString(faceText, formatString(getStringResource(R.string.image_quality), face.getImageQuality()));
-        }
-
-        if (face.getLiveness() < 0.5) {
-            appendString(faceText, formatString(getStringResource(R.string.fake_face), face.getLiveness()));
-            return false;
-        }
-
-        appendString(faceText, formatString(getStringResource(R.string.live_face), face.getLiveness()));
-        return true;
-    }
-
     @Override
     protected void onDraw(@NonNull Canvas canvas) {
         super.onDraw(canvas);
@@ -133,31 +99,26 @@ public class FacesView extends View {
         if (facesTransform == null)
             return;
 
-        synchronized (this) {
-            for (var i = 0; i < detectionResult.getSize(); ++i) {
-                final var face = detectionResult.getFace(i);
-                final var rect = face.getRect();
+        final var detectionResult = detectionResults.acquire();
+        for (var i = 0; i < detectionResult.getSize(); ++i) {
+            final var face = detectionResult.getFace(i);
+            final var rect = face.getRect();
 
-                faceText.setLength(0);
-                final var liveFace = checkLiveness(face, faceText);
+            final var label = labelFormatter.format(face.getID(), face.getName(), FacesProcessor.isLivenessEnabled(),
+                FacesProcessor.useIBetaLivenessAddon(), face.getLiveness(), face.getImageQuality(), face.getLivenessError());
+            final var liveFace = label.isLive();
 
-                canvas.drawRect(rect, liveFace ? greenPaint : redPaint);
-
-                final var name = face.getName();
-                if (!name.isEmpty())
-                    appendString(faceText, name);
-
-                canvas.drawText(faceText.toString(), rect.centerX(), rect.bottom + 50, liveFace ? greenTextPaint : redTextPaint);
-            }
+            canvas.drawRect(rect, liveFace ? greenPaint : redPaint);
+            canvas.drawText(label.getText(), 0, label.getLength(), rect.centerX(), rect.bottom + 50, liveFace ? greenTextPaint : redTextPaint);
         }
     }
 
+    /** Called on the UI thread. The face stays valid until the next frame is drawn. */
     public FacesProcessor.Face getFaceContainingPoint(final float x, final float y) {
-        synchronized (this) {
-            for (var i = 0; i < detectionResult.getSize(); ++i)
-                if (detectionResult.getFace(i).getRect().contains(x, y))
-                    return detectionResult.getFace(i);
-        }
+        final var detectionResult = detectionResults.acquire();
+        for (var i = 0; i < detectionResult.getSize(); ++i)
+            if (detectionResult.getFace(i).getRect().contains(x, y))
+                return detectionResult.getFace(i);
 
         return null;
     }
@@ -0,0 +1,189 @@
+package com.example.liverecognition;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.camera.core.ImageProxy;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Processes camera frames in two overlapping stages.
+ * The first stage converts a frame on the calling (analysis) thread into a pooled buffer,
+ * the second one feeds converted frames to the tracker on a dedicated thread.
+ * While the tracker works on frame N, the camera frame N+1 is being converted.
+ *
+ * The number of frames in flight is bounded by the pool size, so latency stays bounded as well:
+ * when every buffer is busy, frames are dropped according to the drop policy.
+ */
+public class FramePipeline {
+
+    /**
+     * What to do with a new frame when all buffers are busy.
+     */
+    public enum DropPolicy {
+        /** Reuse the buffer of the oldest frame still waiting for the tracker. Keeps the latency lowest. */
+        DROP_OLDEST,
+        /** Drop the new frame, frames already waiting are processed. */
+        DROP_NEWEST
+    }
+
+    /**
+     * Converted frame ready to be loaded into FSDK.
+     */
+    public static class Frame {
+
+        private byte[] pixels;
+        private int width;
+        private int height;
+        private int bytesPerPixel;
+        private float scaleX = 1.f;
+        private float scaleY = 1.f;
+
+        /**
+         * Converts the camera frame into this one. Every frame owns its pixel buffer, allocated by the first conversion
+         * and reused while it is large enough, so a frame being tracked is never overwritten by the next one.
+         */
+        public void convert(@NonNull final YUVToRGBConverter converter, @NonNull final ImageProxy image, final int rotationDegrees, final boolean mirror) {
+            pixels = converter.convert(image, rotationDegrees, mirror, pixels);
+            width = converter.getOutputWidth();
+            height = converter.getOutputHeight();
+            bytesPerPixel = converter.getBytesPerPixel();
+            scaleX = converter.getScaleX();
+            scaleY = converter.getScaleY();
+        }
+
+        @NonNull
+        public byte[] getPixels() {
+            return pixels;
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        public int getBytesPerPixel() {
+            return bytesPerPixel;
+        }
+
+        public boolean isGrayscale() {
+            return bytesPerPixel == 1;
+        }
+
+        /** Number of frame pixels per converted image pixel along the x axis. */
+        public float getScaleX() {
+            return scaleX;
+        }
+
+        /** Number of frame pixels per converted image pixel along the y axis. */
+        public float getScaleY() {
+            return scaleY;
+        }
+    }
+
+    /** First stage, runs on the thread that submits frames. */
+    public interface FrameConverter {
+        void convert(@NonNull ImageProxy image, @NonNull Frame frame);
+    }
+
+    /** Second stage, runs on the pipeline thread. */
+    public interface FrameConsumer {
+        void consume(@NonNull Frame frame);
+    }
+
+    private final DropPolicy dropPolicy;
+    private final FrameConverter converter;
+    private final FrameConsumer consumer;
+
+    /* Every frame is either free, pending (converted and waiting for the second stage) or being consumed. */
+    private final ArrayBlockingQueue<Frame> freeFrames;
+    private final ArrayBlockingQueue<Frame> pendingFrames;
+
+    private final AtomicLong droppedFrames = new AtomicLong();
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    /**
+     * @param poolSize Number of frame buffers, at least 2 for the stages to overlap.
+     */
+    public FramePipeline(final int poolSize, @NonNull final DropPolicy dropPolicy,
+                         @NonNull final FrameConverter converter, @NonNull final FrameConsumer consumer) {
+        if (poolSize < 2)
+            throw new IllegalArgumentException("Pipeline requires at least 2 frame buffers");
+
+        this.dropPolicy = dropPolicy;
+        this.converter = converter;
+        this.consumer = consumer;
+
+        freeFrames = new ArrayBlockingQueue<>(poolSize);
+        pendingFrames = new ArrayBlockingQueue<>(poolSize);
+        for (var i = 0; i < poolSize; ++i)
+            freeFrames.add(new Frame());
+
+        thread = new Thread(this::run, "FramePipeline");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Converts the frame on the calling thread and queues it for the second stage. Never blocks.
+     * The image is not used after this returns and can be closed right away.
+     *
+     * @return False if the frame was dropped.
+     */
+    public boolean submit(@NonNull final ImageProxy image) {
+        var frame = freeFrames.poll();
+
+        if (frame == null && dropPolicy == DropPolicy.DROP_OLDEST) {
+            frame = pendingFrames.poll();
+
+            /* The reused frame had been converted, but will never reach the second stage. */
+            if (frame != null)
+                droppedFrames.incrementAndGet();
+        }
+
+        if (frame == null) {
+            droppedFrames.incrementAndGet();
+            return false;
+        }
+
+        converter.convert(image, frame);
+        pendingFrames.add(frame);
+        return true;
+    }
+
+    /** Number of frames dropped because the second stage was too slow. */
+    public long getDroppedFrameCount() {
+        return droppedFrames.get();
+    }
+
+    /** Stops the second stage, frames waiting for it are discarded. */
+    public void shutdown() {
+        running = false;
+        thread.interrupt();
+    }
+
+    private void run() {
+        while (running) {
+            final Frame frame;
+            try {
+                frame = pendingFrames.take();
+            } catch (InterruptedException e) {
+                break;
+            }
+
+            try {
+                consumer.consume(frame);
+            } catch (RuntimeException e) {
+                Log.e("luxand_fsdk", "Error while processing frame", e);
+            } finally {
+                freeFrames.add(frame);
+            }
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package com.example.liverecognition;
+
+import androidx.annotation.NonNull;
+
+import com.luxand.FSDK;
+
+/**
+ * Merges IDs the tracker has created for the same person. For every ID, the IDs GetSimilarIDList reports are merged
+ * into it: their templates are added to the surviving ID and they are purged. A named ID always survives, and IDs
+ * with different names are never merged. IDs created after the compaction has started are left for the next one.
+ * A compaction cancelled because the tracker memory was cleared or replaced is not reported.
+ */
+public class GalleryCompaction implements MaintenanceTask {
+
+    /**
+     * Receives the outcome of the compaction, on the tracker thread.
+     */
+    public interface Listener {
+        void onCompacted(long idCountBefore, long idCountAfter, long memorySizeBefore, long memorySizeAfter);
+    }
+
+    private final Listener listener;
+
+    /* IDs present when the compaction started, and the next one to check. */
+    private long[] ids = null;
+    private int next = 0;
+
+    private long idCountBefore = 0;
+    private long memorySizeBefore = 0;
+
+    private final long[] count = { 0 };
+
+    public GalleryCompaction(@NonNull final Listener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public void cancel() {
+        ids = null;
+        next = 0;
+    }
+
+    @Override
+    public boolean step(@NonNull final FSDK.HTracker tracker, final long deadline) {
+        if (ids == null) {
+            memorySizeBefore = FSDK.GetTrackerMemoryBufferSize(tracker, count) == FSDK.FSDKE_OK ? count[0] : 0;
+            idCountBefore = FSDK.GetTrackerIDsCount(tracker, count) == FSDK.FSDKE_OK ? count[0] : 0;
+
+            ids = new long[(int)idCountBefore];
+            if (ids.length > 0 && FSDK.GetTrackerAllIDs(tracker, ids) != FSDK.FSDKE_OK)
+                ids = new long[0];
+        }
+
+        while (next < ids.length) {
+            mergeSimilarIDs(tracker, ids[next++]);
+
+            if (System.nanoTime() >= deadline)
+                return true;
+        }
+
+        final var memorySizeAfter = FSDK.GetTrackerMemoryBufferSize(tracker, count) == FSDK.FSDKE_OK ? count[0] : 0;
+        final var idCountAfter = FSDK.GetTrackerIDsCount(tracker, count) == FSDK.FSDKE_OK ? count[0] : 0;
+        listener.onCompacted(idCountBefore, idCountAfter, memorySizeBefore, memorySizeAfter);
+        return false;
+    }
+
+    private void mergeSimilarIDs(final FSDK.HTracker tracker, final long id) {
+        /* The ID may have been merged into another one already. */
+        if (!hasID(tracker, id))
+            return;
+
+        if (FSDK.GetSimilarIDCount(tracker, id, count) != FSDK.FSDKE_OK || count[0] == 0)
+            return;
+
+        final var similarIDs = new long[(int)count[0]];
+        if (FSDK.GetSimilarIDList(tracker, id, similarIDs) != FSDK.FSDKE_OK)
+            return;
+
+        final var name = FacesProcessor.getNameForID(id);
+
+        for (final var similarID : similarIDs) {
+            if (similarID == id || !hasID(tracker, similarID))
+                continue;
+
+            final var similarName = FacesProcessor.getNameForID(similarID);
+            if (!name.isEmpty() && !similarName.isEmpty() && !name.equals(similarName))
+                continue;
+
+            /* The ID being checked survives unless only the other one has a name, then it is merged into that one and the check ends. */
+            if (name.isEmpty() && !similarName.isEmpty()) {
+                FacesProcessor.mergeIDs(similarID, id);
+                return;
+            }
+
+            FacesProcessor.mergeIDs(id, similarID);
+        }
+    }
+
+    private boolean hasID(final FSDK.HTracker tracker, final long id) {
+        return FSDK.GetTrackerFaceIDsCountForID(tracker, id, count) == FSDK.FSDKE_OK && count[0] > 0;
+    }
+}
@@ -0,0 +1,570 @@
+package com.example.liverecognition;
+
+import android.util.LongSparseArray;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.luxand.FSDK;
+
+/**
+ * Copy of the tracker's face templates, for 1:N identification outside the tracker.
+ *
+ * Identification splits the templates into shards matched with FSDK.MatchFaces on a pool of worker threads,
+ * every shard keeps its own top K IDs, which are merged at the end. Unlike TrackerMatchFaces it doesn't need
+ * the tracker thread, and its latency goes down with the number of cores.
+ *
+ * The index is changed on the tracker thread only: templates of enrolled and purged IDs are added and removed
+ * as the changes are made. Templates the tracker learns or merges on its own are caught up with by a sync,
+ * a MaintenanceTask that checks the IDs marked as changed, one at a time, and only copies templates of IDs whose
+ * face IDs differ from the index. All IDs are checked after the tracker memory is loaded.
+ *
+ * Identification may run on any thread, several at once, and never blocks changes. Templates and their IDs are
+ * stored in chunks of CHUNK_SLOTS slots, every change publishes a snapshot of the chunks that identifications
+ * started afterwards read. Slots past the size of the published snapshots are filled in place, a chunk with
+ * a published slot to change is copied first, so a snapshot in use never changes.
+ */
+public class GalleryIndex {
+
+    /** Size of FSDK.FSDK_FaceTemplate.template. */
+    public static final int TEMPLATE_SIZE = 2068;
+
+    /** Smallest number of templates worth a separate thread. */
+    private static final int MIN_SHARD_TEMPLATES = 256;
+
+    /** Slots of a chunk, about 0.5 MB of templates. */
+    private static final int CHUNK_SHIFT = 8;
+    private static final int CHUNK_SLOTS = 1 << CHUNK_SHIFT;
+    private static final int CHUNK_MASK = CHUNK_SLOTS - 1;
+
+    /**
+     * Templates visible to identification, never changed once published.
+     */
+    private static class Snapshot {
+
+        private final byte[][] templateChunks;
+        private final long[][] idChunks;
+        private final int size;
+
+        private Snapshot(final byte[][] templateChunks, final long[][] idChunks, final int size) {
+            this.templateChunks = templateChunks;
+            this.idChunks = idChunks;
+            this.size = size;
+        }
+    }
+
+    /**
+     * Templates of a range of slots matched against the query, with the best K IDs found among them.
+     */
+    private static class Shard implements Runnable {
+
+        private final Identification identification;
+        private final FSDK.FSDK_FaceTemplate candidate = new FSDK.FSDK_FaceTemplate();
+        private final float[] similarity = { 0.f };
+
+        private long[] topIDs = new long[0];
+        private float[] topSimilarities = new float[0];
+        private int topCount;
+
+        private int start;
+        private int end;
+
+        private Shard(final Identification identification) {
+            this.identification = identification;
+        }
+
+        private void prepare(final int start, final int end, final int k) {
+            this.start = start;
+            this.end = end;
+            topCount = 0;
+
+            if (topIDs.length < k) {
+                topIDs = new long[k];
+                topSimilarities = new float[k];
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                final var snapshot = identification.snapshot;
+                for (var slot = start; slot < end; ++slot) {
+                    System.arraycopy(snapshot.templateChunks[slot >> CHUNK_SHIFT], (slot & CHUNK_MASK) * TEMPLATE_SIZE, candidate.template, 0, TEMPLATE_SIZE);
+
+                    if (FSDK.MatchFaces(identification.query, candidate, similarity) == FSDK.FSDKE_OK && similarity[0] >= identification.threshold)
+                        topCount = insert(topIDs, topSimilarities, topCount, identification.k, snapshot.idChunks[slot >> CHUNK_SHIFT][slot & CHUNK_MASK], similarity[0]);
+                }
+            } finally {
+                identification.shardFinished();
+            }
+        }
+    }
+
+    /**
+     * Shards of an identification and what they match, one per identifying thread.
+     */
+    private static class Identification {
+
+        private final Shard[] shards;
+        private int pendingShards;
+        private Snapshot snapshot;
+        private FSDK.FSDK_FaceTemplate query;
+        private float threshold;
+        private int k;
+
+        private Identification(final int shardCount) {
+            shards = new Shard[shardCount];
+            for (var i = 0; i < shards.length; ++i)
+                shards[i] = new Shard(this);
+        }
+
+        private synchronized void shardFinished() {
+            if (--pendingShards == 0)
+                notifyAll();
+        }
+
+        private synchronized void awaitShards() {
+            var interrupted = false;
+            while (pendingShards > 0) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    /* Shards use the shared state, they must finish before it changes. */
+                    interrupted = true;
+                }
+            }
+
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Brings the templates of the IDs marked as changed in line with the tracker, a few IDs per step.
+     */
+    private class Sync implements MaintenanceTask {
+
+        /* IDs being checked, and the IDs marked since, checked next. */
+        private long[] ids = new long[64];
+        private int idCount = 0;
+        private int nextID = 0;
+        private long[] pendingIDs = new long[64];
+        private int pendingCount = 0;
+        private boolean allIDs = false;
+        private boolean running = false;
+
+        private final long[] count = { 0 };
+        private long[] faceIDs = new long[0];
+        private final FSDK.FSDK_FaceTemplate faceTemplate = new FSDK.FSDK_FaceTemplate();
+
+        private void reset() {
+            idCount = 0;
+            nextID = 0;
+            pendingCount = 0;
+            allIDs = false;
+        }
+
+        /* IDs marked since the index was cleared are left for the next sync. */
+        @Override
+        public void cancel() {
+            running = false;
+        }
+
+        @Override
+        public boolean step(@NonNull final FSDK.HTracker tracker, final long deadline) {
+            try {
+                while (true) {
+                    if (nextID == idCount && !takePendingIDs(tracker)) {
+                        running = false;
+                        return false;
+                    }
+
+                    syncID(tracker, ids[nextID++]);
+
+                    if (System.nanoTime() >= deadline)
+                        return true;
+                }
+            } catch (RuntimeException e) {
+                running = false;
+                throw e;
+            }
+        }
+
+        private boolean takePendingIDs(final FSDK.HTracker tracker) {
+            nextID = 0;
+            idCount = 0;
+
+            if (allIDs) {
+                allIDs = false;
+                pendingCount = 0;
+
+                if (FSDK.GetTrackerIDsCount(tracker, count) != FSDK.FSDKE_OK || count[0] == 0)
+                    return false;
+
+                if (ids.length != count[0])
+                    ids = new long[(int)count[0]];
+                if (FSDK.GetTrackerAllIDs(tracker, ids) != FSDK.FSDKE_OK)
+                    return false;
+
+                idCount = ids.length;
+                return true;
+            }
+
+            final var taken = pendingIDs;
+            pendingIDs = ids;
+            ids = taken;
+            idCount = pendingCount;
+            pendingCount = 0;
+            return idCount > 0;
+        }
+
+        private void syncID(final FSDK.HTracker tracker, final long id) {
+            var faceIDCount = 0;
+            if (FSDK.GetTrackerFaceIDsCountForID(tracker, id, count) == FSDK.FSDKE_OK && count[0] > 0) {
+                if (faceIDs.length != count[0])
+                    faceIDs = new long[(int)count[0]];
+                if (FSDK.GetTrackerFaceIDsForID(tracker, id, faceIDs) == FSDK.FSDKE_OK)
+                    faceIDCount = faceIDs.length;
+            }
+
+            var indexed = 0;
+            for (var i = 0; i < faceIDCount; ++i) {
+                final var slot = slotsByFaceID.get(faceIDs[i]);
+                if (slot != null && getSlotID(slot) == id)
+                    ++indexed;
+            }
+
+            final var indexedForID = getSlotCount(id);
+            if (indexed == faceIDCount && indexedForID == faceIDCount)
+                return;
+
+            /* Templates the tracker merged into this ID from another one. */
+            var kept = 0;
+            for (var i = 0; i < faceIDCount; ++i) {
+                final var slot = slotsByFaceID.get(faceIDs[i]);
+                if (slot != null) {
+                    moveSlot(slot, id);
+                    ++kept;
+                }
+            }
+
+            /* Templates no longer in the ID, they are added back if they turn up in another one. */
+            if (indexedForID > indexed) {
+                for (var slot = size - 1; slot >= 0 && getSlotCount(id) > kept; --slot) {
+                    if (getSlotID(slot) == id && !contains(faceIDs, faceIDCount, slotFaceIDs[slot]))
+                        removeSlot(slot);
+                }
+            }
+
+            for (var i = 0; i < faceIDCount; ++i) {
+                if (slotsByFaceID.get(faceIDs[i]) == null && FSDK.GetTrackerFaceTemplate(tracker, faceIDs[i], faceTemplate) == FSDK.FSDKE_OK)
+                    append(id, faceIDs[i], faceTemplate.template);
+            }
+
+            publish();
+        }
+    }
+
+    /* Snapshot identifications start with. */
+    private volatile Snapshot snapshot = new Snapshot(new byte[0][], new long[0][], 0);
+
+    /* Chunks being changed, on the tracker thread. Slots of a chunk below its visible count are in a published
+     * snapshot, the chunk is copied before one of them changes. Face IDs are only read on the tracker thread. */
+    private byte[][] templateChunks = new byte[0][];
+    private long[][] idChunks = new long[0][];
+    private int[] templatesVisible = new int[0];
+    private int[] idsVisible = new int[0];
+    private long[] slotFaceIDs = new long[0];
+    private int size = 0;
+
+    /* Slot of every face ID and number of slots of every ID, changed with the slots. */
+    private final LongSparseArray<Integer> slotsByFaceID = new LongSparseArray<>();
+    private final LongSparseArray<Integer> slotCounts = new LongSparseArray<>();
+
+    private final Sync sync = new Sync();
+
+    private final ExecutorService workers;
+    private final ThreadLocal<Identification> identifications;
+
+    /**
+     * @param threadCount Number of threads an identification runs on, the calling one included.
+     */
+    public GalleryIndex(final int threadCount) {
+        final var shardCount = Math.max(1, threadCount);
+        identifications = new ThreadLocal<Identification>() {
+            @Override
+            protected Identification initialValue() {
+                return new Identification(shardCount);
+            }
+        };
+
+        workers = shardCount == 1 ? null : Executors.newFixedThreadPool(shardCount - 1, (runnable) -> {
+            final var thread = new Thread(runnable, "GalleryIndex");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /** Number of indexed templates. */
+    public int getTemplateCount() {
+        return snapshot.size;
+    }
+
+    /**
+     * Finds the IDs with templates most similar to the query, among the templates indexed when it is called.
+     *
+     * @param threshold Minimal similarity of a reported ID.
+     * @param ids Receives up to ids.length best IDs, most similar first.
+     * @param similarities Receives similarities of the reported IDs, at least as long as ids.
+     * @return Number of IDs reported.
+     */
+    public int identify(@NonNull final FSDK.FSDK_FaceTemplate query, final float threshold, @NonNull final long[] ids, @NonNull final float[] similarities) {
+        final var k = ids.length;
+        if (k == 0)
+            return 0;
+
+        final var identification = identifications.get();
+        final var snapshot = this.snapshot;
+        final var shards = identification.shards;
+        try {
+            identification.snapshot = snapshot;
+            identification.query = query;
+            identification.threshold = threshold;
+            identification.k = k;
+
+            final var size = snapshot.size;
+            final var shardCount = Math.max(1, Math.min(shards.length, size / MIN_SHARD_TEMPLATES));
+            final var shardSize = (size + shardCount - 1) / shardCount;
+
+            for (var i = 0; i < shardCount; ++i)
+                shards[i].prepare(Math.min(size, i * shardSize), Math.min(size, (i + 1) * shardSize), k);
+
+            synchronized (identification) {
+                identification.pendingShards = shardCount;
+            }
+
+            /* The calling thread takes the first shard. */
+            for (var i = 1; i < shardCount; ++i)
+                workers.execute(shards[i]);
+            shards[0].run();
+
+            identification.awaitShards();
+
+            var count = 0;
+            for (var i = 0; i < shardCount; ++i) {
+                final var shard = shards[i];
+                for (var j = 0; j < shard.topCount; ++j)
+                    count = insert(ids, similarities, count, k, shard.topIDs[j], shard.topSimilarities[j]);
+            }
+
+            return count;
+        } finally {
+            identification.snapshot = null;
+            identification.query = null;
+        }
+    }
+
+    /**
+     * Adds the ID into the top list sorted by similarity, keeping only the best similarity of every ID.
+     *
+     * @return New number of entries.
+     */
+    private static int insert(final long[] ids, final float[] similarities, int count, final int k, final long id, final float similarity) {
+        var position = -1;
+        for (var i = 0; i < count; ++i) {
+            if (ids[i] == id) {
+                if (similarities[i] >= similarity)
+                    return count;
+                position = i;
+                break;
+            }
+        }
+
+        if (position < 0) {
+            if (count == k && similarities[k - 1] >= similarity)
+                return count;
+            position = count < k ? count++ : k - 1;
+        }
+
+        /* Move the entry up to its place. */
+        while (position > 0 && similarities[position - 1] < similarity) {
+            ids[position] = ids[position - 1];
+            similarities[position] = similarities[position - 1];
+            --position;
+        }
+
+        ids[position] = id;
+        similarities[position] = similarity;
+        return count;
+    }
+
+    /** Adds a template of the ID. Called on the tracker thread. */
+    public void add(final long id, final long faceID, @NonNull final byte[] template) {
+        append(id, faceID, template);
+        publish();
+    }
+
+    /** Removes all templates of the ID. Called on the tracker thread. */
+    public void removeID(final long id) {
+        if (getSlotCount(id) == 0)
+            return;
+
+        for (var slot = size - 1; slot >= 0 && getSlotCount(id) > 0; --slot) {
+            if (getSlotID(slot) == id)
+                removeSlot(slot);
+        }
+
+        publish();
+    }
+
+    /** Empties the index, the sync in progress is dropped as well. Called on the tracker thread. */
+    public void clear() {
+        /* Chunks are left to the snapshots in use. */
+        templateChunks = new byte[0][];
+        idChunks = new long[0][];
+        templatesVisible = new int[0];
+        idsVisible = new int[0];
+        size = 0;
+        slotsByFaceID.clear();
+        slotCounts.clear();
+        publish();
+
+        sync.reset();
+    }
+
+    /** Marks the ID for the next sync, e.g. because the tracker may have learned its templates. Called on the tracker thread. */
+    public void markChanged(final long id) {
+        if (sync.pendingCount == sync.pendingIDs.length)
+            sync.pendingIDs = Arrays.copyOf(sync.pendingIDs, sync.pendingIDs.length * 2);
+        sync.pendingIDs[sync.pendingCount++] = id;
+    }
+
+    /** Marks all IDs of the tracker for the next sync, after the tracker memory has been replaced. Called on the tracker thread. */
+    public void markAllChanged() {
+        sync.allIDs = true;
+        sync.pendingCount = 0;
+
+        /* IDs still to be checked are checked again with the others. */
+        sync.nextID = sync.idCount;
+    }
+
+    /**
+     * Starts syncing the IDs marked as changed. Called on the tracker thread.
+     *
+     * @return Task to run with FacesProcessor.runMaintenance, null if there is nothing to sync or a sync is running already,
+     * it takes in the newly marked IDs then.
+     */
+    @Nullable
+    public MaintenanceTask startSync() {
+        if (sync.running || (!sync.allIDs && sync.pendingCount == 0))
+            return null;
+
+        sync.running = true;
+        return sync;
+    }
+
+    /* Makes the changes visible to identifications started from now on. */
+    private void publish() {
+        final var chunkCount = (size + CHUNK_SLOTS - 1) >> CHUNK_SHIFT;
+        for (var i = 0; i < chunkCount; ++i) {
+            final var visible = Math.min(CHUNK_SLOTS, size - (i << CHUNK_SHIFT));
+            templatesVisible[i] = Math.max(templatesVisible[i], visible);
+            idsVisible[i] = Math.max(idsVisible[i], visible);
+        }
+
+        snapshot = new Snapshot(Arrays.copyOf(templateChunks, chunkCount), Arrays.copyOf(idChunks, chunkCount), size);
+    }
+
+    /* Chunk holding the template of the slot, copied first if the slot is published. */
+    private byte[] getWritableTemplates(final int slot) {
+        final var chunk = slot >> CHUNK_SHIFT;
+        if ((slot & CHUNK_MASK) < templatesVisible[chunk]) {
+            templateChunks[chunk] = templateChunks[chunk].clone();
+            templatesVisible[chunk] = 0;
+        }
+        return templateChunks[chunk];
+    }
+
+    private long getSlotID(final int slot) {
+        return idChunks[slot >> CHUNK_SHIFT][slot & CHUNK_MASK];
+    }
+
+    private void setSlotID(final int slot, final long id) {
+        final var chunk = slot >> CHUNK_SHIFT;
+        if ((slot & CHUNK_MASK) < idsVisible[chunk]) {
+            idChunks[chunk] = idChunks[chunk].clone();
+            idsVisible[chunk] = 0;
+        }
+        idChunks[chunk][slot & CHUNK_MASK] = id;
+    }
+
+    private void append(final long id, final long faceID, final byte[] template) {
+        if (size == templateChunks.length << CHUNK_SHIFT) {
+            final var chunkCount = templateChunks.length + 1;
+            templateChunks = Arrays.copyOf(templateChunks, chunkCount);
+            idChunks = Arrays.copyOf(idChunks, chunkCount);
+            templatesVisible = Arrays.copyOf(templatesVisible, chunkCount);
+            idsVisible = Arrays.copyOf(idsVisible, chunkCount);
+            templateChunks[chunkCount - 1] = new byte[CHUNK_SLOTS * TEMPLATE_SIZE];
+            idChunks[chunkCount - 1] = new long[CHUNK_SLOTS];
+            slotFaceIDs = Arrays.copyOf(slotFaceIDs, chunkCount << CHUNK_SHIFT);
+        }
+
+        System.arraycopy(template, 0, getWritableTemplates(size), (size & CHUNK_MASK) * TEMPLATE_SIZE, TEMPLATE_SIZE);
+        setSlotID(size, id);
+        slotFaceIDs[size] = faceID;
+        slotsByFaceID.put(faceID, size);
+        addSlotCount(id, 1);
+        ++size;
+    }
+
+    /* Moves the last slot into the removed one. */
+    private void removeSlot(final int slot) {
+        slotsByFaceID.remove(slotFaceIDs[slot]);
+        addSlotCount(getSlotID(slot), -1);
+
+        final var last = size - 1;
+        if (slot != last) {
+            System.arraycopy(templateChunks[last >> CHUNK_SHIFT], (last & CHUNK_MASK) * TEMPLATE_SIZE,
+                             getWritableTemplates(slot), (slot & CHUNK_MASK) * TEMPLATE_SIZE, TEMPLATE_SIZE);
+            setSlotID(slot, getSlotID(last));
+            slotFaceIDs[slot] = slotFaceIDs[last];
+            slotsByFaceID.put(slotFaceIDs[slot], slot);
+        }
+        size = last;
+    }
+
+    private void moveSlot(final int slot, final long id) {
+        final var oldID = getSlotID(slot);
+        if (oldID == id)
+            return;
+
+        addSlotCount(oldID, -1);
+        addSlotCount(id, 1);
+        setSlotID(slot, id);
+    }
+
+    private int getSlotCount(final long id) {
+        return slotCounts.get(id, 0);
+    }
+
+    private void addSlotCount(final long id, final int delta) {
+        final var count = getSlotCount(id) + delta;
+        if (count > 0)
+            slotCounts.put(id, count);
+        else
+            slotCounts.remove(id);
+    }
+
+    private static boolean contains(final long[] values, final int count, final long value) {
+        for (var i = 0; i < count; ++i) {
+            if (values[i] == value)
+                return true;
+        }
+        return false;
+    }
+}
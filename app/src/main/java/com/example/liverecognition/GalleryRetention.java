@@ -0,0 +1,201 @@
+package com.example.liverecognition;
+
+import android.util.LongSparseArray;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+
+import com.luxand.FSDK;
+
+/**
+ * Keeps the gallery from growing without bound with IDs of passers-by.
+ *
+ * Every tracked ID has the time it was last seen, updated on every frame it is detected on. A sweep purges unnamed IDs
+ * not seen for longer than the maximal age, then the least recently seen unnamed IDs above the budget. Named IDs are
+ * never purged. Last-seen times are kept in memory only: IDs loaded from a snapshot count as seen when the first sweep
+ * finds them, so after a restart eviction may be delayed by up to the maximal age.
+ *
+ * Used on the tracker thread only. A sweep runs as a MaintenanceTask, a step at a time. Times are those of
+ * SystemClock.elapsedRealtime, so that changes of the wall clock don't age the IDs.
+ */
+public class GalleryRetention implements MaintenanceTask {
+
+    private static class Entry {
+        private long lastSeen;
+
+        private Entry(final long lastSeen) {
+            this.lastSeen = lastSeen;
+        }
+    }
+
+    private final long maxAge;
+    private final int maxUnnamedIDs;
+
+    private LongSparseArray<Entry> entries = new LongSparseArray<>();
+
+    /* State of the sweep in progress: IDs being checked, unnamed ones found among them and the IDs to purge. */
+    private boolean sweeping = false;
+    private long sweepTime;
+    private long[] ids = null;
+    private int nextID;
+    private final ArrayList<Long> unnamedIDs = new ArrayList<>();
+    private LongSparseArray<Entry> checkedEntries = new LongSparseArray<>();
+    private long[] evictedIDs = null;
+    private int nextEviction;
+
+    private long evictedCount = 0;
+    private final long[] count = { 0 };
+
+    /**
+     * @param maxAge Time in milliseconds after which an unnamed ID that hasn't been seen is purged.
+     * @param maxUnnamedIDs Number of unnamed IDs kept at most.
+     */
+    public GalleryRetention(final long maxAge, final int maxUnnamedIDs) {
+        this.maxAge = maxAge;
+        this.maxUnnamedIDs = maxUnnamedIDs;
+    }
+
+    /** Records that the ID has been seen. Called for every face of every frame, doesn't allocate for known IDs. */
+    public void touch(final long id, final long time) {
+        final var entry = entries.get(id);
+        if (entry != null)
+            entry.lastSeen = time;
+        else
+            entries.put(id, new Entry(time));
+    }
+
+    /** Forgets every ID, when the tracker is cleared or replaced. The sweep in progress is cancelled by FacesProcessor. */
+    public void clear() {
+        entries.clear();
+    }
+
+    private void resetSweep() {
+        ids = null;
+        evictedIDs = null;
+        unnamedIDs.clear();
+        checkedEntries.clear();
+    }
+
+    /** Number of IDs purged since the retention was created. */
+    public long getEvictedCount() {
+        return evictedCount;
+    }
+
+    /**
+     * Prepares a sweep, to be passed to FacesProcessor.runMaintenance.
+     *
+     * @return False if a sweep is in progress already.
+     */
+    public boolean startSweep(final long time) {
+        if (sweeping)
+            return false;
+
+        sweeping = true;
+        sweepTime = time;
+        ids = null;
+        evictedIDs = null;
+        return true;
+    }
+
+    @Override
+    public void cancel() {
+        sweeping = false;
+        resetSweep();
+    }
+
+    @Override
+    public boolean step(@NonNull final FSDK.HTracker tracker, final long deadline) {
+        try {
+            return sweep(tracker, deadline);
+        } catch (RuntimeException e) {
+            /* The failed step is not run again, the next sweep starts over. */
+            sweeping = false;
+            resetSweep();
+            throw e;
+        }
+    }
+
+    private boolean sweep(final FSDK.HTracker tracker, final long deadline) {
+        if (ids == null) {
+            ids = FSDK.GetTrackerIDsCount(tracker, count) == FSDK.FSDKE_OK ? new long[(int)count[0]] : new long[0];
+            if (ids.length > 0 && FSDK.GetTrackerAllIDs(tracker, ids) != FSDK.FSDKE_OK)
+                ids = new long[0];
+
+            nextID = 0;
+            unnamedIDs.clear();
+            checkedEntries.clear();
+        }
+
+        /* Names are read one ID at a time, a large gallery takes several steps. */
+        while (evictedIDs == null && nextID < ids.length) {
+            checkID(ids[nextID++]);
+
+            if (System.nanoTime() >= deadline)
+                return true;
+        }
+
+        if (evictedIDs == null)
+            selectEvictedIDs();
+
+        while (nextEviction < evictedIDs.length) {
+            final var id = evictedIDs[nextEviction++];
+
+            /* The ID may have been seen again or named since it was selected. */
+            if (entries.get(id) == null && FacesProcessor.getNameForID(id).isEmpty() && FacesProcessor.purgeID(id) == FSDK.FSDKE_OK)
+                ++evictedCount;
+
+            if (System.nanoTime() >= deadline)
+                return true;
+        }
+
+        sweeping = false;
+        resetSweep();
+        return false;
+    }
+
+    private void checkID(final long id) {
+        var entry = entries.get(id);
+
+        /* IDs never seen since the app started count as seen now. */
+        if (entry == null) {
+            entry = new Entry(sweepTime);
+            entries.put(id, entry);
+        }
+
+        checkedEntries.put(id, entry);
+
+        if (FacesProcessor.getNameForID(id).isEmpty())
+            unnamedIDs.add(id);
+    }
+
+    private void selectEvictedIDs() {
+        /* Entries of IDs no longer in the tracker, purged or merged into other IDs, are dropped. IDs first seen during the sweep are kept. */
+        for (var i = 0; i < entries.size(); ++i) {
+            if (entries.valueAt(i).lastSeen >= sweepTime && checkedEntries.indexOfKey(entries.keyAt(i)) < 0)
+                checkedEntries.put(entries.keyAt(i), entries.valueAt(i));
+        }
+
+        final var kept = checkedEntries;
+        checkedEntries = entries;
+        entries = kept;
+        checkedEntries.clear();
+
+        /* Least recently seen first. */
+        Collections.sort(unnamedIDs, (first, second) -> Long.compare(entries.get(first).lastSeen, entries.get(second).lastSeen));
+
+        var evicted = 0;
+        while (evicted < unnamedIDs.size() && (sweepTime - entries.get(unnamedIDs.get(evicted)).lastSeen > maxAge ||
+                                               unnamedIDs.size() - evicted > maxUnnamedIDs))
+            ++evicted;
+
+        evictedIDs = new long[evicted];
+        for (var i = 0; i < evicted; ++i) {
+            evictedIDs[i] = unnamedIDs.get(i);
+            entries.remove(evictedIDs[i]);
+        }
+
+        nextEviction = 0;
+    }
+}
@@ -0,0 +1,85 @@
+package com.example.liverecognition;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Photo of a person, encoded as JPEG or PNG, for batch enrollment and identification.
+ */
+public interface ImageSource {
+
+    /** Name of the person, given to the enrolled ID. */
+    @NonNull
+    String getName();
+
+    @NonNull
+    InputStream open() throws IOException;
+
+    /** Length of the encoded photo, -1 if not known in advance. */
+    default long getLength() {
+        return -1;
+    }
+
+    /** File the photo is read from, null if it isn't a file. */
+    @Nullable
+    default File getFile() {
+        return null;
+    }
+
+    /** Source of a photo file. */
+    @NonNull
+    static ImageSource fromFile(@NonNull final String name, @NonNull final File file) {
+        return new ImageSource() {
+            @NonNull
+            @Override
+            public String getName() {
+                return name;
+            }
+
+            @NonNull
+            @Override
+            public InputStream open() throws IOException {
+                return new FileInputStream(file);
+            }
+
+            @Override
+            public long getLength() {
+                return file.length();
+            }
+
+            @Override
+            public File getFile() {
+                return file;
+            }
+        };
+    }
+
+    /** Source of an encoded photo already in memory. */
+    @NonNull
+    static ImageSource fromBytes(@NonNull final String name, @NonNull final byte[] bytes) {
+        return new ImageSource() {
+            @NonNull
+            @Override
+            public String getName() {
+                return name;
+            }
+
+            @NonNull
+            @Override
+            public InputStream open() {
+                return new ByteArrayInputStream(bytes);
+            }
+
+            @Override
+            public long getLength() {
+                return bytes.length;
+            }
+        };
+    }
+}
@@ -52,7 +52,6 @@ import com.luxand.FSDK;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.FileOutputStream;
 
 import java.util.Locale;
 import java.util.concurrent.Executors;
@@ -65,8 +64,8 @@ public class MainActivity extends AppCompatActivity {
     private static final int FPS_WINDOW_SIZE = 32;
     private static final double FPS_MOVING_ALPHA = 2. / (FPS_WINDOW_SIZE + 1);
 
-    /** The number of bytes for copying images for matching. */
-    private static final int FILE_TRANSFER_SIZE = 4096;
+    /** Convert the next camera frame while the tracker processes the previous one. */
+    private static final boolean USE_PIPELINED_PROCESSING = true;
 
     /** Set the size used for image analysis. Lower values increase performance, but decrease accuracy. */
     private static final Size imageAnalysisTargetSize = new Size(640, 480);
@@ -74,6 +73,9 @@ public class MainActivity extends AppCompatActivity {
     /** Ensure FSDK Tracker is only loaded once. */
     private static boolean facesProcessorLoaded = false;
 
+    /** Set once tracker memory has been loaded or an empty tracker created, frames are dropped until then. */
+    private static volatile boolean trackerLoaded = false;
+
     private static final int permissionsRequestCode = 355;
 
     /** Newer Android versions require different sets of permission to access user images. */
@@ -98,6 +100,12 @@ public class MainActivity extends AppCompatActivity {
     /** Face detection runs on a separate execution thread to increase the overall app performance. */
     private ExecutorService analysisExecutor;
 
+    /** Photos picked for matching are read and matched off the UI thread. */
+    private ExecutorService matchingExecutor;
+
+    /** Created once, so that frames don't allocate a listener each. */
+    private final FacesProcessor.DetectionListener detectionListener = this::onDetectionResult;
+
     private ProcessCameraProvider cameraProvider;
     private ListenableFuture<ProcessCameraProvider> cameraProviderFuture;
 
@@ -105,6 +113,7 @@ public class MainActivity extends AppCompatActivity {
     private File facesFile;
 
     private double fps = -1;
+    private long lastResultTime = -1;
     private int lensFacing = CameraSelector.LENS_FACING_FRONT;
 
     @Override
@@ -119,6 +128,7 @@ public class MainActivity extends AppCompatActivity {
         facesView = findViewById(R.id.faces_view);
         previewView = findViewById(R.id.preview_view);
         analysisExecutor = Executors.newSingleThreadExecutor();
+        matchingExecutor = Executors.newSingleThreadExecutor();
         targetSize = getScreenDimensions();
 
         findViewById(R.id.flip_button).setOnClickListener((button) -> {
@@ -131,7 +141,8 @@ public class MainActivity extends AppCompatActivity {
 
         final var liveness_button = this.<Button>findViewById(R.id.liveness_button);
         liveness_button.setText(FacesProcessor.isLivenessEnabled() ? R.string.liveness_on : R.string.liveness_off);
-        liveness_button.setOnClickListener((button) -> liveness_button.setText(FacesProcessor.toggleLiveness() ? R.string.liveness_on : R.string.liveness_off));
+        liveness_button.setOnClickListener((button) -> FacesProcessor.toggleLiveness((enabled) ->
+            runOnUiThread(() -> liveness_button.setText(enabled ? R.string.liveness_on : R.string.liveness_off))));
 
         findViewById(R.id.match_button).setOnClickListener((button) -> {
             final var chooseImage = new Intent(Intent.ACTION_GET_CONTENT);
@@ -175,15 +186,24 @@ public class MainActivity extends AppCompatActivity {
             return true;
         });
 
+        /* Tracker memory file is saved in the app's data directory. */
+        facesFile = new File(getExternalFilesDir(null), "tracker.bin");
+
         if (!facesProcessorLoaded) {
             /* Initilize FacesProcessor before calling any of the class methods */
             if (!FacesProcessor.initialize(getApplication(), getCacheDir().getAbsolutePath()))
                 showError(R.string.activation_error, true);
 
-            /* Tracker memory file is saved in the app's data directory. */
-            facesFile = new File(getExternalFilesDir(null), "tracker.bin");
-            if (!FacesProcessor.load(facesFile))
-                showError(R.string.wrong_detection_version);
+            /* Loading large galleries takes a while, the camera starts meanwhile. */
+            FacesProcessor.loadAsync(facesFile, (detectionVersionMatches) -> {
+                trackerLoaded = true;
+
+                if (!detectionVersionMatches)
+                    runOnUiThread(() -> {
+                        if (!isFinishing() && !isDestroyed())
+                            showError(R.string.wrong_detection_version);
+                    });
+            });
 
             facesProcessorLoaded = true;
         }
@@ -195,13 +215,15 @@ public class MainActivity extends AppCompatActivity {
     protected void onDestroy() {
         super.onDestroy();
         analysisExecutor.shutdown();
+        matchingExecutor.shutdown();
     }
 
     @Override
     protected void onPause() {
         super.onPause();
 
-        FacesProcessor.save(facesFile);
+        /* Saving thousands of IDs takes a while, the pause transition doesn't wait for it. */
+        FacesProcessor.saveAsync(facesFile);
     }
 
     @Override
@@ -244,38 +266,14 @@ public class MainActivity extends AppCompatActivity {
         builder.show();
     }
 
-    /** FSDK cannot load images from content URIs. If the image provided by user has a content path copy it to the cache directory. */
-    private String copyImageIfContent(@NonNull final Uri uri) {
-        final var scheme = uri.getScheme();
-        if (scheme != null && scheme.equals("content")) {
-            try (final var cursor = getContentResolver().query(uri, null, null, null, null)) {
-                if (cursor == null || !cursor.moveToFirst())
-                    return null;
-
-                final var filename = cursor.getString(cursor.getColumnIndexOrThrow(OpenableColumns.DISPLAY_NAME));
-
-                @SuppressLint("UnsanitizedFilenameFromContentProvider")
-                final var destinationFile = new File(getCacheDir(), filename); // the filename is obtained from image selection screen, no need to sanitize the path provided directly by android.
-
-                try (final var inputStream = getContentResolver().openInputStream(uri);
-                     final var outputStream = new FileOutputStream(destinationFile)) {
-                    if (inputStream == null)
-                        return null;
-
-                    int bytesRead;
-                    final var buffer = new byte[FILE_TRANSFER_SIZE];
-                    while ((bytesRead = inputStream.read(buffer)) != -1)
-                        outputStream.write(buffer, 0, bytesRead);
-
-                } catch (IOException e) {
-                    return null;
-                }
+    /** Size of the content behind the URI, -1 if the provider doesn't tell. */
+    private long getContentLength(@NonNull final Uri uri) {
+        try (final var cursor = getContentResolver().query(uri, new String[] { OpenableColumns.SIZE }, null, null, null)) {
+            if (cursor == null || !cursor.moveToFirst() || cursor.isNull(0))
+                return -1;
 
-                return destinationFile.getAbsolutePath();
-            }
+            return cursor.getLong(0);
         }
-
-        return uri.getPath();
     }
 
     private final ActivityResultLauncher<Intent> imageSelectionResultLauncher = registerForActivityResult(
@@ -288,33 +286,71 @@ public class MainActivity extends AppCompatActivity {
             if (data == null || data.getData() == null)
                 return;
 
-            final var imagePath = copyImageIfContent(data.getData());
-            if (imagePath == null) {
-                showError(R.string.image_read_error);
-                return;
-            }
+            /* The image is streamed into the SDK, without copying it to a file first.
+             * Reading and matching it waits for the tracker, so it is done off the UI thread. */
+            final var uri = data.getData();
+            matchingExecutor.execute(() -> {
+                FacesProcessor.MatchingResult face;
+                try (final var input = getContentResolver().openInputStream(uri)) {
+                    face = input == null ? null : FacesProcessor.matchFace(input, getContentLength(uri));
+                } catch (IOException e) {
+                    face = null;
+                }
 
-            final var face = FacesProcessor.matchFace(imagePath);
-            final var builder = new AlertDialog.Builder(this);
-            if (face.isError()) {
-                builder.setTitle(R.string.error_title);
-                if (face.getError() == FSDK.FSDKE_FACE_NOT_FOUND)
-                    builder.setMessage(R.string.face_not_found_error);
-                else
-                    builder.setMessage(formatString(R.string.error, face.getError()));
-            } else if (!face.hasMatch()) {
-                builder.setTitle(R.string.no_match_title);
-                builder.setMessage(R.string.no_match_error);
-            } else {
-                builder.setTitle(R.string.match_title);
-                builder.setMessage(formatString(R.string.face_found, face.getName(), face.getID(), face.getSimilarity()));
-            }
+                final var matchingResult = face;
+                runOnUiThread(() -> {
+                    if (isFinishing() || isDestroyed())
+                        return;
 
-            builder.setPositiveButton(R.string.ok, ((dialogInterface, which) -> {}));
-            builder.show();
+                    if (matchingResult == null)
+                        showError(R.string.image_read_error);
+                    else
+                        showMatchingResult(matchingResult);
+                });
+            });
         }
     );
 
+    private void showMatchingResult(@NonNull final FacesProcessor.MatchingResult face) {
+        final var builder = new AlertDialog.Builder(this);
+        if (face.isError()) {
+            builder.setTitle(R.string.error_title);
+            if (face.getError() == FSDK.FSDKE_FACE_NOT_FOUND)
+                builder.setMessage(R.string.face_not_found_error);
+            else
+                builder.setMessage(formatString(R.string.error, face.getError()));
+        } else if (!face.hasMatch()) {
+            builder.setTitle(R.string.no_match_title);
+            builder.setMessage(R.string.no_match_error);
+        } else {
+            builder.setTitle(R.string.match_title);
+            builder.setMessage(formatString(R.string.face_found, face.getName(), face.getID(), face.getSimilarity()));
+        }
+
+        builder.setPositiveButton(R.string.ok, ((dialogInterface, which) -> {}));
+        builder.show();
+    }
+
+    /** Receives results of pipelined processing. FPS is measured between results, since stages of consecutive frames overlap. */
+    private void onDetectionResult(@NonNull final FacesProcessor.DetectionResult result) {
+        facesView.setDetectionResult(result);
+
+        final var time = System.nanoTime();
+        if (SHOW_FPS && lastResultTime > 0)
+            updateFPS(time - lastResultTime);
+
+        lastResultTime = time;
+    }
+
+    private void updateFPS(final long frameTime) {
+        final var newFPS = 1000000000 / (double)frameTime;
+        fps = fps > 0
+            ? newFPS * FPS_MOVING_ALPHA + fps * (1 - FPS_MOVING_ALPHA)
+            : newFPS;
+
+        runOnUiThread(() -> fpsTextView.setText(String.format(Locale.getDefault(), "%.1f", fps)));
+    }
+
     private Size getScreenDimensions() {
         var displayMetrics = new DisplayMetrics();
         getWindowManager().getDefaultDisplay().getMetrics(displayMetrics);
@@ -447,17 +483,24 @@ public class MainActivity extends AppCompatActivity {
                 return;
             }
 
+            /* Frames fed before the load completes would go to a tracker that is about to be replaced, or doesn't exist yet. */
+            if (!trackerLoaded) {
+                imageProxy.close();
+                return;
+            }
+
+            /* Pipelined processing only converts the frame here, so the camera buffer is released before tracking finishes. */
+            if (USE_PIPELINED_PROCESSING) {
+                FacesProcessor.submit(imageProxy, detectionListener);
+                imageProxy.close();
+                return;
+            }
+
             final var time = System.nanoTime();
             facesView.setDetectionResult(FacesProcessor.accept(imageProxy));
 
-            if (SHOW_FPS) {
-                final var newFPS = 1000000000 / (double)(System.nanoTime() - time);
-                fps = fps > 0
-                    ? newFPS * FPS_MOVING_ALPHA + fps * (1 - FPS_MOVING_ALPHA)
-                    : newFPS;
-
-                runOnUiThread(() -> fpsTextView.setText(String.format(Locale.getDefault(), "%.1f", fps)));
-            }
+            if (SHOW_FPS)
+                updateFPS(System.nanoTime() - time);
 
             imageProxy.close();
         });
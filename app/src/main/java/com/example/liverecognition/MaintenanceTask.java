@@ -0,0 +1,25 @@
+package com.example.liverecognition;
+
+import androidx.annotation.NonNull;
+
+import com.luxand.FSDK;
+
+/**
+ * Long running gallery work, split into short steps run on the tracker thread in between frames, see FacesProcessor.runMaintenance.
+ */
+public interface MaintenanceTask {
+
+    /**
+     * Does a part of the work on the tracker thread. Work that changes the gallery goes through FacesProcessor, so it is journaled.
+     *
+     * @param deadline System.nanoTime() by which the step should return.
+     * @return False once the task is complete.
+     */
+    boolean step(@NonNull FSDK.HTracker tracker, long deadline);
+
+    /**
+     * Drops the work left, called on the tracker thread instead of the next step once the tracker memory has been
+     * cleared or replaced: IDs the task has collected may already belong to other people. The task can be started again.
+     */
+    void cancel();
+}
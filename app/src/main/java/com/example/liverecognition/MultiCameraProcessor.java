@@ -0,0 +1,159 @@
+package com.example.liverecognition;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.camera.core.ImageProxy;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Serves several camera streams with a shared tracker on a fixed pool of worker threads.
+ *
+ * Every camera converts its frames on its own (analysis) thread, the converted frame then waits in the
+ * camera's single slot mailbox, a newer frame replaces the one still waiting. A camera with a waiting frame
+ * is queued for the workers, and after one processed frame it goes back to the tail of the queue.
+ * This way cameras take turns in round robin order, and a camera delivering frames faster than the tracker
+ * handles them can't starve the others, its excess frames are dropped instead.
+ */
+public class MultiCameraProcessor {
+
+    /**
+     * Frame source of a single camera.
+     */
+    public class Feed {
+
+        private final FacesProcessor.CameraStream stream;
+        private final FacesProcessor.DetectionListener listener;
+
+        /* Converted frame waiting for a worker, newer frames replace it. */
+        private final AtomicReference<FramePipeline.Frame> pendingFrame = new AtomicReference<>();
+
+        /* Every frame owns its pixel buffer, the converted frame waiting and the one being fed are never written to. */
+        private final ConcurrentLinkedQueue<FramePipeline.Frame> freeFrames = new ConcurrentLinkedQueue<>();
+
+        /* Set while the feed is queued for or being processed by a worker, so it never holds more than one turn. */
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+
+        private final AtomicLong droppedFrames = new AtomicLong();
+
+        private Feed(final long cameraIdx, final FacesProcessor.DetectionListener listener) {
+            this.stream = new FacesProcessor.CameraStream(cameraIdx);
+            this.listener = listener;
+
+            for (var i = 0; i < FRAMES_PER_FEED; ++i)
+                freeFrames.add(new FramePipeline.Frame());
+        }
+
+        public long getCameraIdx() {
+            return stream.getCameraIdx();
+        }
+
+        /**
+         * Converts the frame on the calling thread and queues it for the tracker. Never blocks.
+         * Frames of a single feed must be submitted from one thread at a time.
+         * The image can be closed as soon as this returns.
+         */
+        public void submit(@NonNull final ImageProxy image) {
+            if (!running)
+                return;
+
+            /* Can't happen while frames are submitted from one thread, but then converting into a busy frame would tear it. */
+            final var frame = freeFrames.poll();
+            if (frame == null) {
+                droppedFrames.incrementAndGet();
+                return;
+            }
+
+            stream.convert(image, frame);
+
+            final var replaced = pendingFrame.getAndSet(frame);
+            if (replaced != null) {
+                freeFrames.add(replaced);
+                droppedFrames.incrementAndGet();
+            }
+
+            schedule();
+        }
+
+        /** Number of frames replaced by newer ones before a worker got to them. */
+        public long getDroppedFrameCount() {
+            return droppedFrames.get();
+        }
+
+        private void schedule() {
+            if (!scheduled.compareAndSet(false, true))
+                return;
+
+            try {
+                workers.execute(this::process);
+            } catch (RejectedExecutionException e) {
+                /* Processor has been shut down. */
+                scheduled.set(false);
+            }
+        }
+
+        /* A single turn: feeds the waiting frame to the tracker, then yields to the other feeds. */
+        private void process() {
+            final var frame = pendingFrame.getAndSet(null);
+
+            if (frame != null && running) {
+                try {
+                    listener.onDetectionResult(stream.feed(frame));
+                } catch (RuntimeException e) {
+                    Log.e("luxand_fsdk", "Error while processing frame of camera " + stream.getCameraIdx(), e);
+                }
+            }
+
+            if (frame != null)
+                freeFrames.add(frame);
+
+            scheduled.set(false);
+
+            /* Frame that arrived during the turn goes back to the tail of the worker queue. */
+            if (pendingFrame.get() != null && running)
+                schedule();
+        }
+    }
+
+    /** Frames per feed: one converted on the camera thread, one waiting and one being fed to the tracker. */
+    private static final int FRAMES_PER_FEED = 3;
+
+    private final ExecutorService workers;
+    private volatile boolean running = true;
+
+    /**
+     * @param workerCount Number of worker threads. Tracker calls are serialized, additional workers overlap image loading with tracking.
+     */
+    public MultiCameraProcessor(final int workerCount) {
+        /* Executor queue is FIFO, which makes scheduling of the feeds round robin. */
+        workers = Executors.newFixedThreadPool(workerCount, (runnable) -> {
+            final var thread = new Thread(runnable, "MultiCameraProcessor");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Adds a camera stream. The listener is called on a worker thread with the results of this camera only,
+     * the result stays valid until the feed processes its next but one frame.
+     *
+     * @param cameraIdx Tracker camera index, unique per processor. Index 0 is used by FacesProcessor.accept and submit.
+     */
+    @NonNull
+    public Feed addCamera(final long cameraIdx, @NonNull final FacesProcessor.DetectionListener listener) {
+        return new Feed(cameraIdx, listener);
+    }
+
+    /** Stops the workers, frames waiting for them are discarded. */
+    public void shutdown() {
+        running = false;
+        workers.shutdownNow();
+    }
+}
@@ -0,0 +1,333 @@
+package com.example.liverecognition;
+
+import androidx.annotation.NonNull;
+
+import java.util.concurrent.CountDownLatch;
+
+import com.luxand.FSDK;
+
+/**
+ * Limits the number of templates of every ID. The tracker keeps adding templates of people it sees often, most of them
+ * nearly identical. For an ID above the budget, the similarity of every pair of its templates is computed with MatchFaces,
+ * then the template of the most similar pair that is closer to the rest is dropped, until the budget is met, so the most
+ * diverse templates are kept. The tracker can't remove single templates, the ID is rebuilt from the kept ones instead,
+ * see FacesProcessor.rebuildID, so it gets a new ID.
+ *
+ * Similarities are computed a row at a time, so an ID with many templates takes several maintenance steps. The gallery
+ * may change in between: an ID that has had templates added since they were read is reduced again, a purged one is skipped.
+ * FacesProcessor starts a pass every TEMPLATE_BUDGET_INTERVAL frames, TemplateBudget.run applies the budget once and
+ * reports its effect. Used on the tracker thread only, apart from run.
+ */
+public class TemplateBudget implements MaintenanceTask {
+
+    /** Identifications timed to measure the 1:N latency. */
+    private static final int LATENCY_RUNS = 10;
+
+    /**
+     * Gallery size and identification latency before and after the budget was applied.
+     */
+    public static class Report {
+
+        private final long[] before;
+        private final long[] after;
+        private final int rebuiltIDCount;
+
+        private Report(final long[] before, final long[] after, final int rebuiltIDCount) {
+            this.before = before;
+            this.after = after;
+            this.rebuiltIDCount = rebuiltIDCount;
+        }
+
+        public long getTemplateCountBefore() {
+            return before[0];
+        }
+
+        public long getTemplateCountAfter() {
+            return after[0];
+        }
+
+        public long getMemorySizeBefore() {
+            return before[1];
+        }
+
+        public long getMemorySizeAfter() {
+            return after[1];
+        }
+
+        /** Average time of FacesProcessor.identify with a single candidate, in nanoseconds. */
+        public long getLatencyBefore() {
+            return before[2];
+        }
+
+        public long getLatencyAfter() {
+            return after[2];
+        }
+
+        public int getRebuiltIDCount() {
+            return rebuiltIDCount;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return "Templates " + before[0] + " -> " + after[0] + ", tracker memory " + before[1] + " -> " + after[1] +
+                   " bytes, 1:N latency " + before[2] / 1000 + " -> " + after[2] / 1000 + " us, " + rebuiltIDCount + " IDs rebuilt";
+        }
+    }
+
+    /**
+     * Receives the report, on a background thread.
+     */
+    public interface Listener {
+        void onFinished(@NonNull Report report);
+    }
+
+    private final int maxTemplates;
+    private final CountDownLatch finished = new CountDownLatch(1);
+
+    private boolean running = false;
+    private long[] ids = null;
+    private int nextID = 0;
+    private int rebuiltIDCount = 0;
+
+    /* ID being reduced, its template count in the tracker, its templates and their pairwise similarities, computed up to the row. */
+    private long id;
+    private long templateCount;
+    private byte[][] templates = null;
+    private float[][] similarities;
+    private int row;
+
+    private final FSDK.FSDK_FaceTemplate first = new FSDK.FSDK_FaceTemplate();
+    private final FSDK.FSDK_FaceTemplate second = new FSDK.FSDK_FaceTemplate();
+    private final float[] similarity = { 0.f };
+    private final long[] count = { 0 };
+
+    /**
+     * @param maxTemplates Number of templates an ID keeps at most.
+     */
+    public TemplateBudget(final int maxTemplates) {
+        this.maxTemplates = Math.max(1, maxTemplates);
+    }
+
+    /**
+     * Applies the budget with FacesProcessor.runMaintenance, measuring the gallery and the 1:N latency before and after.
+     * Returns right away.
+     */
+    public static void run(final int maxTemplates, @NonNull final Listener listener) {
+        final var thread = new Thread(() -> {
+            final var budget = new TemplateBudget(maxTemplates);
+            final var before = measure();
+
+            budget.start();
+            FacesProcessor.runMaintenance(budget);
+
+            var interrupted = false;
+            while (true) {
+                try {
+                    budget.finished.await();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+
+            listener.onFinished(new Report(before, measure(), budget.rebuiltIDCount));
+
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }, "TemplateBudget");
+
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /* Template count, tracker memory size and identification latency. */
+    private static long[] measure() {
+        final var probe = new FSDK.FSDK_FaceTemplate();
+        final var size = TrackerThread.getUninterruptibly(FacesProcessor.submitCommand((tracker) -> {
+            final var result = new long[3];
+            final var count = new long[1];
+
+            if (FSDK.GetTrackerMemoryBufferSize(tracker, count) == FSDK.FSDKE_OK)
+                result[1] = count[0];
+
+            if (FSDK.GetTrackerIDsCount(tracker, count) != FSDK.FSDKE_OK || count[0] == 0)
+                return result;
+
+            final var ids = new long[(int)count[0]];
+            if (FSDK.GetTrackerAllIDs(tracker, ids) != FSDK.FSDKE_OK)
+                return result;
+
+            for (final var id : ids) {
+                if (FSDK.GetTrackerFaceIDsCountForID(tracker, id, count) != FSDK.FSDKE_OK || count[0] == 0)
+                    continue;
+
+                /* The first template found is the query of the timed identifications. */
+                if (result[0] == 0) {
+                    final var templates = FacesProcessor.getTemplatesForID(id);
+                    if (templates.length == 0)
+                        continue;
+                    probe.template = templates[0];
+                }
+                result[0] += count[0];
+            }
+
+            return result;
+        }));
+
+        if (size[0] == 0)
+            return size;
+
+        final var result = new FacesProcessor.IdentificationResult(1);
+
+        /* The first identification warms up the index workers, it is not timed. */
+        FacesProcessor.identify(probe, result);
+
+        final var start = System.nanoTime();
+        for (var i = 0; i < LATENCY_RUNS; ++i)
+            FacesProcessor.identify(probe, result);
+        size[2] = (System.nanoTime() - start) / LATENCY_RUNS;
+
+        return size;
+    }
+
+    /**
+     * Starts a pass over every ID, to be run with FacesProcessor.runMaintenance.
+     *
+     * @return False if a pass is in progress already.
+     */
+    public boolean start() {
+        if (running)
+            return false;
+
+        running = true;
+        ids = null;
+        nextID = 0;
+        templates = null;
+        return true;
+    }
+
+    @Override
+    public void cancel() {
+        finish();
+    }
+
+    @Override
+    public boolean step(@NonNull final FSDK.HTracker tracker, final long deadline) {
+        try {
+            if (ids == null) {
+                ids = FSDK.GetTrackerIDsCount(tracker, count) == FSDK.FSDKE_OK ? new long[(int)count[0]] : new long[0];
+                if (ids.length > 0 && FSDK.GetTrackerAllIDs(tracker, ids) != FSDK.FSDKE_OK)
+                    ids = new long[0];
+            }
+
+            while (true) {
+                if (templates == null) {
+                    if (nextID == ids.length) {
+                        finish();
+                        return false;
+                    }
+
+                    startID(tracker, ids[nextID++]);
+                } else if (row < templates.length) {
+                    computeRow();
+                } else {
+                    final var newID = FacesProcessor.rebuildID(id, templateCount, selectDiverseTemplates());
+                    templates = null;
+                    similarities = null;
+
+                    if (newID >= 0)
+                        ++rebuiltIDCount;
+                    else if (FSDK.GetTrackerFaceIDsCountForID(tracker, id, count) == FSDK.FSDKE_OK && count[0] != templateCount)
+                        startID(tracker, id);
+                }
+
+                if (System.nanoTime() >= deadline)
+                    return true;
+            }
+        } catch (RuntimeException e) {
+            /* The failed step is not run again, the next pass starts over. */
+            finish();
+            throw e;
+        }
+    }
+
+    private void finish() {
+        running = false;
+        ids = null;
+        templates = null;
+        similarities = null;
+        finished.countDown();
+    }
+
+    private void startID(final FSDK.HTracker tracker, final long id) {
+        if (FSDK.GetTrackerFaceIDsCountForID(tracker, id, count) != FSDK.FSDKE_OK || count[0] <= maxTemplates)
+            return;
+
+        final var templates = FacesProcessor.getTemplatesForID(id);
+        if (templates.length <= maxTemplates)
+            return;
+
+        this.id = id;
+        templateCount = count[0];
+        this.templates = templates;
+        similarities = new float[templates.length][templates.length];
+        row = 0;
+    }
+
+    private void computeRow() {
+        first.template = templates[row];
+        for (var column = row + 1; column < templates.length; ++column) {
+            second.template = templates[column];
+            final var value = FSDK.MatchFaces(first, second, similarity) == FSDK.FSDKE_OK ? similarity[0] : 0.f;
+            similarities[row][column] = value;
+            similarities[column][row] = value;
+        }
+
+        ++row;
+    }
+
+    private byte[][] selectDiverseTemplates() {
+        final var count = templates.length;
+        final var dropped = new boolean[count];
+
+        for (var remaining = count; remaining > maxTemplates; --remaining) {
+            /* The most similar pair holds the most redundant template. */
+            var bestFirst = -1;
+            var bestSecond = -1;
+            for (var i = 0; i < count; ++i) {
+                if (dropped[i])
+                    continue;
+
+                for (var j = i + 1; j < count; ++j) {
+                    if (!dropped[j] && (bestFirst < 0 || similarities[i][j] > similarities[bestFirst][bestSecond])) {
+                        bestFirst = i;
+                        bestSecond = j;
+                    }
+                }
+            }
+
+            /* Of the two, the one closer to the others adds less. */
+            dropped[redundancy(bestFirst, dropped) >= redundancy(bestSecond, dropped) ? bestFirst : bestSecond] = true;
+        }
+
+        final var kept = new byte[maxTemplates][];
+        var next = 0;
+        for (var i = 0; i < count; ++i) {
+            if (!dropped[i])
+                kept[next++] = templates[i];
+        }
+
+        return kept;
+    }
+
+    private float redundancy(final int template, final boolean[] dropped) {
+        var sum = 0.f;
+        for (var i = 0; i < templates.length; ++i) {
+            if (i != template && !dropped[i])
+                sum += similarities[template][i];
+        }
+
+        return sum;
+    }
+}
@@ -0,0 +1,252 @@
+package com.example.liverecognition;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.luxand.FSDK;
+
+/**
+ * Face templates already extracted from photos, keyed by the SHA-256 of the encoded photo, so that matching or enrolling
+ * the same photo again skips decoding and template extraction.
+ *
+ * Recently used templates are kept in memory, up to MEMORY_CAPACITY of them, every template is also stored on the disk
+ * as a raw FSDK_FaceTemplate of TEMPLATE_SIZE bytes. The disk tier holds up to a capacity of templates: once it is
+ * exceeded, the files least recently stored or read from the disk are deleted down to DISK_PRUNE_RATIO of it.
+ * Templates depend on the detection version, the disk tier keeps the templates of every detection version in
+ * a separate directory, and deletes the directories of other versions. Thread safe.
+ */
+public class TemplateCache {
+
+    /** Templates kept in memory. */
+    private static final int MEMORY_CAPACITY = 1024;
+
+    /** Templates kept on the disk by default, about 17 MB. */
+    public static final int DEFAULT_DISK_CAPACITY = 8192;
+
+    /** Share of the disk capacity left by pruning, so that it doesn't run on every store. */
+    private static final float DISK_PRUNE_RATIO = 0.75f;
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final File directory;
+    private final int diskCapacity;
+
+    /* Number of files in the disk tier, counted by the first store. */
+    private final Object diskLock = new Object();
+    private int diskCount = -1;
+
+    /* Access ordered, the eldest entry is the least recently used one. */
+    private final LinkedHashMap<String, byte[]> templates = new LinkedHashMap<String, byte[]>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String, byte[]> eldest) {
+            return size() > MEMORY_CAPACITY;
+        }
+    };
+
+    private final ThreadLocal<MessageDigest> digests = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                /* Every Java platform provides SHA-256. */
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
+    /**
+     * @param directory Directory of the disk tier, created when needed.
+     * @param detectionVersion Detection version the templates are extracted with.
+     */
+    public TemplateCache(@NonNull final File directory, final int detectionVersion) {
+        this(directory, detectionVersion, DEFAULT_DISK_CAPACITY);
+    }
+
+    /**
+     * @param diskCapacity Number of templates kept on the disk.
+     */
+    public TemplateCache(@NonNull final File directory, final int detectionVersion, final int diskCapacity) {
+        this.directory = new File(directory, "v" + detectionVersion);
+        this.diskCapacity = Math.max(1, diskCapacity);
+    }
+
+    /** Key of the encoded photo. */
+    @NonNull
+    public String getKey(@NonNull final byte[] data, final int length) {
+        final var digest = digests.get();
+        digest.reset();
+        digest.update(data, 0, length);
+
+        final var hash = digest.digest();
+        final var key = new char[hash.length * 2];
+        for (var i = 0; i < hash.length; ++i) {
+            key[i * 2] = HEX_DIGITS[(hash[i] >> 4) & 0xF];
+            key[i * 2 + 1] = HEX_DIGITS[hash[i] & 0xF];
+        }
+
+        return new String(key);
+    }
+
+    /**
+     * Copies the cached template into faceTemplate.
+     *
+     * @return False if there is no template for the key.
+     */
+    public boolean get(@NonNull final String key, @NonNull final FSDK.FSDK_FaceTemplate faceTemplate) {
+        final byte[] template;
+        synchronized (templates) {
+            template = templates.get(key);
+        }
+
+        if (template != null) {
+            System.arraycopy(template, 0, faceTemplate.template, 0, GalleryIndex.TEMPLATE_SIZE);
+            return true;
+        }
+
+        final var loaded = load(key);
+        if (loaded == null)
+            return false;
+
+        synchronized (templates) {
+            templates.put(key, loaded);
+        }
+
+        System.arraycopy(loaded, 0, faceTemplate.template, 0, GalleryIndex.TEMPLATE_SIZE);
+        return true;
+    }
+
+    /** Caches the template extracted from the photo with the key. */
+    public void put(@NonNull final String key, @NonNull final FSDK.FSDK_FaceTemplate faceTemplate) {
+        final var template = faceTemplate.template.clone();
+        synchronized (templates) {
+            templates.put(key, template);
+        }
+
+        store(key, template);
+    }
+
+    @Nullable
+    private byte[] load(final String key) {
+        final var file = new File(directory, key);
+        if (file.length() != GalleryIndex.TEMPLATE_SIZE)
+            return null;
+
+        /* Templates read from the disk are the last to be pruned. */
+        file.setLastModified(System.currentTimeMillis());
+
+        final var template = new byte[GalleryIndex.TEMPLATE_SIZE];
+        try (final var input = new FileInputStream(file)) {
+            var length = 0;
+            while (length < template.length) {
+                final var read = input.read(template, length, template.length - length);
+                if (read < 0)
+                    return null;
+                length += read;
+            }
+        } catch (IOException e) {
+            Log.e("luxand_fsdk", "Error while reading cached template " + file, e);
+            return null;
+        }
+
+        return template;
+    }
+
+    private void store(final String key, final byte[] template) {
+        final var file = new File(directory, key);
+        if (file.exists())
+            return;
+
+        if (!directory.isDirectory() && !directory.mkdirs() && !directory.isDirectory()) {
+            Log.e("luxand_fsdk", "Cannot create template cache directory " + directory);
+            return;
+        }
+
+        /* A template is written under a temporary name first, so that a partially written file is never read. */
+        try {
+            final var temporaryFile = File.createTempFile(key, ".tmp", directory);
+            try (final var output = new FileOutputStream(temporaryFile)) {
+                output.write(template);
+            }
+
+            if (!temporaryFile.renameTo(file)) {
+                temporaryFile.delete();
+                Log.e("luxand_fsdk", "Cannot store cached template " + file);
+                return;
+            }
+        } catch (IOException e) {
+            Log.e("luxand_fsdk", "Error while storing cached template " + file, e);
+            return;
+        }
+
+        synchronized (diskLock) {
+            if (diskCount < 0) {
+                deleteOtherVersions();
+                prune();
+            } else if (++diskCount > diskCapacity) {
+                prune();
+            }
+        }
+    }
+
+    /* Deletes the least recently used files once the capacity is exceeded, and counts the rest. Called with the disk lock held. */
+    private void prune() {
+        final var files = directory.listFiles();
+        if (files == null) {
+            diskCount = 0;
+            return;
+        }
+
+        diskCount = files.length;
+        if (diskCount <= diskCapacity)
+            return;
+
+        /* Modification times are read once, not on every comparison. */
+        final var order = new Integer[files.length];
+        final var times = new long[files.length];
+        for (var i = 0; i < files.length; ++i) {
+            order[i] = i;
+            times[i] = files[i].lastModified();
+        }
+        Arrays.sort(order, (first, second) -> Long.compare(times[first], times[second]));
+
+        final var target = (int)(diskCapacity * DISK_PRUNE_RATIO);
+        for (var i = 0; i < order.length && diskCount > target; ++i) {
+            if (files[order[i]].delete())
+                --diskCount;
+        }
+    }
+
+    /* Templates of other detection versions are never read again. */
+    private void deleteOtherVersions() {
+        final var versions = directory.getParentFile() == null ? null : directory.getParentFile().listFiles();
+        if (versions == null)
+            return;
+
+        for (final var version : versions) {
+            if (!version.isDirectory() || version.equals(directory) || !version.getName().startsWith("v"))
+                continue;
+
+            final var files = version.listFiles();
+            if (files != null) {
+                for (final var file : files)
+                    file.delete();
+            }
+
+            if (!version.delete())
+                Log.e("luxand_fsdk", "Cannot delete template cache directory " + version);
+        }
+    }
+}
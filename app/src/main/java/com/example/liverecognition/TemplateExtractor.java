@@ -0,0 +1,175 @@
+package com.example.liverecognition;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import com.luxand.FSDK;
+
+/**
+ * Reads a photo into memory, decodes it with LoadImageFromJpegBuffer or LoadImageFromPngBuffer depending on its magic bytes
+ * and extracts the face template. Keeps the read buffer and image handle between images, one extractor per thread.
+ * Photos found in the TemplateCache of FacesProcessor are not decoded at all.
+ *
+ * Other formats are loaded with LoadImageFromFile, from the file of the source when it has one. Photos read from
+ * streams are written to a temporary file for that, BMP being the only other format recognized.
+ */
+public class TemplateExtractor {
+
+    /** Initial size of the read buffer. */
+    private static final int INITIAL_BUFFER_SIZE = 256 * 1024;
+
+    /** Largest photo read into memory. */
+    private static final int MAX_IMAGE_SIZE = Integer.MAX_VALUE - 8;
+
+    private final FSDK.HImage image = new FSDK.HImage();
+    private byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+
+    /**
+     * @return FSDK error code: FSDKE_IO_ERROR if the source can't be read, FSDKE_BAD_FILE_FORMAT if the format
+     * is not recognized, FSDKE_FACE_NOT_FOUND if there is no face on the photo and so on.
+     */
+    public int extract(@NonNull final ImageSource source, @NonNull final FSDK.FSDK_FaceTemplate faceTemplate) {
+        final int length;
+        try (final var input = source.open()) {
+            length = read(input, source.getLength());
+        } catch (IOException e) {
+            Log.e("luxand_fsdk", "Error while reading image of " + source.getName(), e);
+            return FSDK.FSDKE_IO_ERROR;
+        }
+
+        return extract(length, source.getFile(), faceTemplate);
+    }
+
+    /**
+     * Reads the photo from the stream, which is left open. See extract(ImageSource, FSDK_FaceTemplate).
+     *
+     * @param length Length of the stream if known, -1 otherwise. The buffer is sized from it up front.
+     */
+    public int extract(@NonNull final InputStream input, final long length, @NonNull final FSDK.FSDK_FaceTemplate faceTemplate) {
+        final int read;
+        try {
+            read = read(input, length);
+        } catch (IOException e) {
+            Log.e("luxand_fsdk", "Error while reading image", e);
+            return FSDK.FSDKE_IO_ERROR;
+        }
+
+        return extract(read, null, faceTemplate);
+    }
+
+    /**
+     * Takes the photo from the remaining bytes of the buffer, its position is left unchanged.
+     * See extract(ImageSource, FSDK_FaceTemplate).
+     */
+    public int extract(@NonNull final ByteBuffer data, @NonNull final FSDK.FSDK_FaceTemplate faceTemplate) {
+        final var length = data.remaining();
+        ensureCapacity(length);
+
+        final var position = data.position();
+        data.get(buffer, 0, length);
+        data.position(position);
+
+        return extract(length, null, faceTemplate);
+    }
+
+    private void ensureCapacity(final long length) {
+        if (buffer.length < length)
+            buffer = new byte[(int)length];
+    }
+
+    /* Reads the stream into the buffer, returns its length. */
+    private int read(final InputStream input, final long expectedLength) throws IOException {
+        if (expectedLength > MAX_IMAGE_SIZE)
+            throw new IOException("Image of " + expectedLength + " bytes is too large");
+
+        /* One byte more, so that reaching the end of the stream doesn't grow the buffer. */
+        if (expectedLength >= 0)
+            ensureCapacity(expectedLength + 1);
+
+        var length = 0;
+        while (true) {
+            if (length == buffer.length) {
+                if (length == MAX_IMAGE_SIZE)
+                    throw new IOException("Image is too large");
+                buffer = Arrays.copyOf(buffer, (int)Math.min(MAX_IMAGE_SIZE, buffer.length * 2L));
+            }
+
+            final var read = input.read(buffer, length, buffer.length - length);
+            if (read < 0)
+                return length;
+            length += read;
+        }
+    }
+
+    private int extract(final int length, final File file, final FSDK.FSDK_FaceTemplate faceTemplate) {
+        /* The cache is created by FacesProcessor.initialize, it is read on every photo in case that happens later. */
+        final var cache = FacesProcessor.getTemplateCache();
+        final var key = cache == null ? null : cache.getKey(buffer, length);
+        if (key != null && cache.get(key, faceTemplate))
+            return FSDK.FSDKE_OK;
+
+        final var loaded = load(length, file);
+        if (loaded != FSDK.FSDKE_OK)
+            return loaded;
+
+        final var result = FacesProcessor.getFaceTemplate(image, faceTemplate);
+        FSDK.FreeImage(image);
+
+        if (result == FSDK.FSDKE_OK && key != null)
+            cache.put(key, faceTemplate);
+
+        return result;
+    }
+
+    private int load(final int length, final File file) {
+        if (isJpeg(buffer, length))
+            return FSDK.LoadImageFromJpegBuffer(image, buffer, length);
+
+        if (isPng(buffer, length))
+            return FSDK.LoadImageFromPngBuffer(image, buffer, length);
+
+        if (file != null)
+            return FSDK.LoadImageFromFile(image, file.getPath());
+
+        /* LoadImageFromFile recognizes the format by the extension. */
+        if (!isBmp(buffer, length))
+            return FSDK.FSDKE_BAD_FILE_FORMAT;
+
+        File temporaryFile = null;
+        try {
+            temporaryFile = File.createTempFile("image", ".bmp");
+            try (final var output = new FileOutputStream(temporaryFile)) {
+                output.write(buffer, 0, length);
+            }
+
+            return FSDK.LoadImageFromFile(image, temporaryFile.getPath());
+        } catch (IOException e) {
+            Log.e("luxand_fsdk", "Error while writing temporary image", e);
+            return FSDK.FSDKE_IO_ERROR;
+        } finally {
+            if (temporaryFile != null && !temporaryFile.delete())
+                Log.e("luxand_fsdk", "Cannot delete temporary image " + temporaryFile);
+        }
+    }
+
+    private static boolean isJpeg(final byte[] buffer, final int length) {
+        return length >= 3 && (buffer[0] & 0xFF) == 0xFF && (buffer[1] & 0xFF) == 0xD8 && (buffer[2] & 0xFF) == 0xFF;
+    }
+
+    private static boolean isPng(final byte[] buffer, final int length) {
+        return length >= 8 && (buffer[0] & 0xFF) == 0x89 && buffer[1] == 'P' && buffer[2] == 'N' && buffer[3] == 'G'
+            && buffer[4] == '\r' && buffer[5] == '\n' && buffer[6] == 0x1A && buffer[7] == '\n';
+    }
+
+    private static boolean isBmp(final byte[] buffer, final int length) {
+        return length >= 2 && buffer[0] == 'B' && buffer[1] == 'M';
+    }
+}
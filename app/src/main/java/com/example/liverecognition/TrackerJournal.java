@@ -0,0 +1,367 @@
+package com.example.liverecognition;
+
+import android.util.Log;
+import android.util.LongSparseArray;
+
+import androidx.annotation.NonNull;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of gallery changes made since the last tracker snapshot: created IDs, added templates,
+ * names, purged IDs and clears. Every record carries a sequence number, the snapshot stores the sequence number
+ * of the last change it includes, so on startup only the newer records are replayed on top of it.
+ *
+ * Records are numbered on the tracker thread, in the order the changes are applied to the tracker, and written
+ * to the file on the persistence thread, each batch followed by a sync. A record torn by a crash fails its
+ * checksum and ends the replay, records before it are kept, and the torn tail is cut off before new records follow.
+ *
+ * Replay finds IDs by the number they had in the snapshot or in the record that created them. IDs the tracker learned
+ * since the snapshot have neither, so the journal keeps track of the IDs replay can resolve, and changes to any
+ * other ID are recorded as CREATE_ID of the whole ID, see isReplayable.
+ *
+ * Record layout: length and CRC32 of the payload, then sequence, type, ID, name and face templates.
+ */
+public class TrackerJournal {
+
+    public static final byte CREATE_ID = 1;
+    public static final byte ADD_TEMPLATES = 2;
+    public static final byte SET_NAME = 3;
+    public static final byte PURGE_ID = 4;
+    public static final byte CLEAR = 5;
+
+    /** Largest record accepted by replay, anything larger is a damaged length field. */
+    private static final int MAX_RECORD_SIZE = 1 << 20;
+
+    /**
+     * Single gallery change.
+     */
+    public static class Record {
+
+        private long sequence;
+        private final byte type;
+        private final long id;
+        private final String name;
+        private final byte[][] templates;
+
+        public Record(final byte type, final long id, @NonNull final String name, @NonNull final byte[][] templates) {
+            this.type = type;
+            this.id = id;
+            this.name = name;
+            this.templates = templates;
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        public byte getType() {
+            return type;
+        }
+
+        /** ID as it was when the record was made, replay maps it to the ID the tracker assigns on recreation. */
+        public long getID() {
+            return id;
+        }
+
+        @NonNull
+        public String getName() {
+            return name;
+        }
+
+        @NonNull
+        public byte[][] getTemplates() {
+            return templates;
+        }
+    }
+
+    /**
+     * Receives records during replay.
+     */
+    public interface RecordConsumer {
+        void accept(@NonNull Record record);
+    }
+
+    private final File file;
+
+    /* Numbering is done on the tracker thread. */
+    private long lastSequence;
+    private int recordsSinceCheckpoint = 0;
+
+    /* IDs of the last snapshot and IDs recreated by records since, on the tracker thread. */
+    private final LongSparseArray<Boolean> replayableIDs = new LongSparseArray<>();
+
+    /* Encoded records waiting for the persistence thread. */
+    private final ConcurrentLinkedQueue<byte[]> pendingRecords = new ConcurrentLinkedQueue<>();
+
+    /**
+     * @param lastSequence Sequence number of the last record already applied, new records continue after it.
+     * @param ids IDs replay can resolve, those in the tracker memory the journal continues.
+     */
+    public TrackerJournal(@NonNull final File file, final long lastSequence, @NonNull final long[] ids) {
+        this.file = file;
+        this.lastSequence = lastSequence;
+        setReplayableIDs(ids);
+    }
+
+    @NonNull
+    public File getFile() {
+        return file;
+    }
+
+    /** Sequence number of the last record made. Called on the tracker thread. */
+    public long getLastSequence() {
+        return lastSequence;
+    }
+
+    /** Number of records made since the last call to markCheckpoint. Called on the tracker thread. */
+    public int getRecordsSinceCheckpoint() {
+        return recordsSinceCheckpoint;
+    }
+
+    /**
+     * Called on the tracker thread when a snapshot including every record so far is taken.
+     *
+     * @param ids IDs in the snapshot.
+     */
+    public void markCheckpoint(@NonNull final long[] ids) {
+        recordsSinceCheckpoint = 0;
+        setReplayableIDs(ids);
+    }
+
+    /**
+     * Whether replay can find the ID, because it is in the last snapshot or was created by a record since.
+     * Called on the tracker thread.
+     */
+    public boolean isReplayable(final long id) {
+        return replayableIDs.get(id, false);
+    }
+
+    private void setReplayableIDs(final long[] ids) {
+        replayableIDs.clear();
+        for (final var id : ids)
+            replayableIDs.put(id, true);
+    }
+
+    /**
+     * Numbers the record and queues it for writing. Called on the tracker thread right after the change is applied.
+     * The record is on the disk once flush has been called on the persistence thread.
+     */
+    public void add(@NonNull final Record record) {
+        record.sequence = ++lastSequence;
+        ++recordsSinceCheckpoint;
+        pendingRecords.add(encode(record));
+
+        /* Records carrying the templates of an ID recreate it on replay. */
+        switch (record.type) {
+            case CREATE_ID:
+            case SET_NAME:
+                replayableIDs.put(record.id, true);
+                break;
+            case PURGE_ID:
+                replayableIDs.remove(record.id);
+                break;
+            case CLEAR:
+                replayableIDs.clear();
+                break;
+        }
+    }
+
+    /** Appends queued records to the file and syncs it. Called on the persistence thread. */
+    public void flush() throws IOException {
+        if (pendingRecords.isEmpty())
+            return;
+
+        try (final var output = new FileOutputStream(file, true)) {
+            for (var record = pendingRecords.poll(); record != null; record = pendingRecords.poll())
+                output.write(record);
+
+            output.getFD().sync();
+        }
+    }
+
+    /**
+     * Drops records included in a snapshot. Called on the persistence thread after the snapshot is on the disk.
+     * Records are rewritten into a temporary file that replaces the journal, as a snapshot does.
+     */
+    public void truncate(final long snapshotSequence) throws IOException {
+        flush();
+
+        if (!file.exists())
+            return;
+
+        final var kept = new ArrayList<Record>();
+        read(file, snapshotSequence, kept::add);
+
+        if (kept.isEmpty()) {
+            if (!file.delete())
+                throw new IOException("Cannot delete " + file);
+            return;
+        }
+
+        final var temporaryFile = new File(file.getPath() + ".tmp");
+        try (final var output = new FileOutputStream(temporaryFile)) {
+            for (final var record : kept)
+                output.write(encode(record));
+
+            output.getFD().sync();
+        }
+
+        if (!temporaryFile.renameTo(file))
+            throw new IOException("Cannot replace " + file + " with " + temporaryFile);
+    }
+
+    /**
+     * Reads records newer than the sequence number. Reading stops at the first damaged or incomplete record.
+     *
+     * @return Sequence number of the last record read, or afterSequence if there were none.
+     */
+    public static long read(@NonNull final File file, final long afterSequence, @NonNull final RecordConsumer consumer) throws IOException {
+        return read(file, afterSequence, consumer, new long[1]);
+    }
+
+    /**
+     * Reads records like read, then cuts a damaged or incomplete tail off the file, so records appended afterwards
+     * follow the last valid one instead of being hidden behind the damage. Called before the journal is continued.
+     */
+    public static long recover(@NonNull final File file, final long afterSequence, @NonNull final RecordConsumer consumer) throws IOException {
+        final var validLength = new long[1];
+        final var lastSequence = read(file, afterSequence, consumer, validLength);
+
+        if (file.exists() && file.length() > validLength[0]) {
+            try (final var output = new RandomAccessFile(file, "rw")) {
+                output.getChannel().truncate(validLength[0]);
+                output.getFD().sync();
+            } catch (IOException e) {
+                Log.e("luxand_fsdk", "Error while cutting the damaged tail off tracker journal " + file, e);
+            }
+        }
+
+        return lastSequence;
+    }
+
+    /* validLength receives the length of the records read, up to the damage if there is any. */
+    private static long read(final File file, final long afterSequence, final RecordConsumer consumer, final long[] validLength) throws IOException {
+        var lastSequence = afterSequence;
+        validLength[0] = 0;
+
+        if (!file.exists())
+            return lastSequence;
+
+        try (final var input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            final var crc = new CRC32();
+
+            while (true) {
+                final int length;
+                final int checksum;
+                try {
+                    length = input.readInt();
+                    checksum = input.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+
+                if (length <= 0 || length > MAX_RECORD_SIZE) {
+                    Log.e("luxand_fsdk", "Damaged tracker journal record after sequence " + lastSequence);
+                    break;
+                }
+
+                final var payload = new byte[length];
+                try {
+                    input.readFully(payload);
+                } catch (EOFException e) {
+                    Log.e("luxand_fsdk", "Incomplete tracker journal record after sequence " + lastSequence);
+                    break;
+                }
+
+                crc.reset();
+                crc.update(payload, 0, length);
+                if ((int)crc.getValue() != checksum) {
+                    Log.e("luxand_fsdk", "Tracker journal checksum mismatch after sequence " + lastSequence);
+                    break;
+                }
+
+                final var record = decode(payload);
+                validLength[0] += 2 * Integer.BYTES + length;
+                if (record.sequence > afterSequence) {
+                    consumer.accept(record);
+                    lastSequence = Math.max(lastSequence, record.sequence);
+                }
+            }
+        }
+
+        return lastSequence;
+    }
+
+    private static byte[] encode(final Record record) {
+        try {
+            final var payload = new ByteArrayOutputStream();
+            final var output = new DataOutputStream(payload);
+            output.writeLong(record.sequence);
+            output.writeByte(record.type);
+            output.writeLong(record.id);
+            output.writeUTF(record.name);
+            output.writeInt(record.templates.length);
+            for (final var template : record.templates) {
+                output.writeInt(template.length);
+                output.write(template);
+            }
+            output.flush();
+
+            final var bytes = payload.toByteArray();
+            final var crc = new CRC32();
+            crc.update(bytes, 0, bytes.length);
+
+            final var framed = new ByteArrayOutputStream(bytes.length + 2 * Integer.BYTES);
+            final var framedOutput = new DataOutputStream(framed);
+            framedOutput.writeInt(bytes.length);
+            framedOutput.writeInt((int)crc.getValue());
+            framedOutput.write(bytes);
+            framedOutput.flush();
+
+            return framed.toByteArray();
+        } catch (IOException e) {
+            /* Writing to memory doesn't fail. */
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Record decode(final byte[] payload) throws IOException {
+        final var input = new DataInputStream(new ByteArrayInputStream(payload));
+        final var sequence = input.readLong();
+        final var type = input.readByte();
+        final var id = input.readLong();
+        final var name = input.readUTF();
+
+        final var count = input.readInt();
+        if (count < 0 || count > payload.length)
+            throw new IOException("Damaged tracker journal record " + sequence);
+
+        final var templates = new byte[count][];
+        for (var i = 0; i < count; ++i) {
+            final var length = input.readInt();
+            if (length < 0 || length > payload.length)
+                throw new IOException("Damaged tracker journal record " + sequence);
+
+            templates[i] = new byte[length];
+            input.readFully(templates[i]);
+        }
+
+        final var record = new Record(type, id, name, templates);
+        record.sequence = sequence;
+        return record;
+    }
+}
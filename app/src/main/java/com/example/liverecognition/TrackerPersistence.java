@@ -0,0 +1,181 @@
+package com.example.liverecognition;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.luxand.FSDK;
+
+/**
+ * Saves tracker memory without blocking the caller.
+ *
+ * The tracker thread only copies the memory into a buffer, the buffer is written on a background thread
+ * as a TrackerSnapshot.
+ * The file is replaced atomically: the snapshot goes to a temporary file, which is synced to the disk and renamed
+ * over the old one, so a process killed in the middle of a save leaves the previous file intact.
+ * Save requests made while a previous one still waits for its turn are merged into one.
+ *
+ * Gallery changes recorded in the TrackerJournal between snapshots are appended on the same thread, in batches.
+ * Once a snapshot is on the disk, the journal records it includes are dropped.
+ */
+public class TrackerPersistence {
+
+    /* File of the save waiting to be started, null when there is none. */
+    private final AtomicReference<File> pendingFile = new AtomicReference<>();
+
+    /* Set while a journal flush is queued, records added meanwhile are written by that flush. */
+    private final AtomicBoolean journalFlushPending = new AtomicBoolean();
+
+    /* Journal of the loaded tracker memory, null until it is loaded. */
+    private volatile TrackerJournal journal = null;
+
+    private final ExecutorService writer = Executors.newSingleThreadExecutor((runnable) -> {
+        final var thread = new Thread(runnable, "TrackerPersistence");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /* Snapshot buffer, reused while the memory size doesn't change. Filled on the tracker thread, then written on the writer thread. */
+    private byte[] buffer = new byte[0];
+
+    /**
+     * Requests the tracker memory to be saved to the file. Returns right away.
+     * If an earlier request has not started yet, it saves to this file instead and no new save is queued.
+     */
+    public void requestSave(@NonNull final File file) {
+        if (pendingFile.getAndSet(file) == null)
+            writer.execute(this::save);
+    }
+
+    /** Sets the journal whose records are included in the following snapshots. */
+    public void setJournal(final TrackerJournal journal) {
+        this.journal = journal;
+    }
+
+    /** Requests records added to the journal to be written to the disk. Returns right away. */
+    public void requestJournalFlush() {
+        if (journalFlushPending.compareAndSet(false, true))
+            writer.execute(this::flushJournal);
+    }
+
+    /**
+     * Returns a future completed once every save requested before the call has finished.
+     */
+    @NonNull
+    public Future<?> flush() {
+        return writer.submit(() -> {});
+    }
+
+    /**
+     * Runs the task on the background thread after the saves requested so far, and before the ones requested later.
+     * Used to load tracker memory without racing a save of the memory that is being replaced.
+     */
+    @NonNull
+    public <T> Future<T> submit(@NonNull final Callable<T> task) {
+        return writer.submit(task);
+    }
+
+    private void save() {
+        final var file = pendingFile.getAndSet(null);
+        if (file == null)
+            return;
+
+        final var journal = this.journal;
+        final var snapshot = TrackerThread.getUninterruptibly(FacesProcessor.submitCommand((tracker) -> snapshot(tracker, journal)));
+        if (snapshot == null)
+            return;
+
+        try {
+            write(file, snapshot);
+        } catch (IOException e) {
+            Log.e("luxand_fsdk", "Error while saving tracker memory to " + file, e);
+            return;
+        }
+
+        if (journal == null)
+            return;
+
+        try {
+            journal.truncate(snapshot.getJournalSequence());
+        } catch (IOException e) {
+            /* Records left in the journal are skipped on replay, as they are older than the snapshot. */
+            Log.e("luxand_fsdk", "Error while truncating tracker journal " + journal.getFile(), e);
+        }
+    }
+
+    private void flushJournal() {
+        journalFlushPending.set(false);
+
+        final var journal = this.journal;
+        if (journal == null)
+            return;
+
+        try {
+            journal.flush();
+        } catch (IOException e) {
+            Log.e("luxand_fsdk", "Error while writing tracker journal " + journal.getFile(), e);
+        }
+    }
+
+    /* Runs on the tracker thread, returns null on error. */
+    private TrackerSnapshot snapshot(final FSDK.HTracker tracker, final TrackerJournal journal) {
+        final var size = new long[1];
+        if (FSDK.GetTrackerMemoryBufferSize(tracker, size) != FSDK.FSDKE_OK || size[0] > Integer.MAX_VALUE) {
+            Log.e("luxand_fsdk", "Error while getting tracker memory size");
+            return null;
+        }
+
+        if (buffer.length != size[0])
+            buffer = new byte[(int)size[0]];
+
+        if (FSDK.SaveTrackerMemoryToBuffer(tracker, buffer) != FSDK.FSDKE_OK) {
+            Log.e("luxand_fsdk", "Error while saving tracker memory to buffer");
+            return null;
+        }
+
+        final String[] detectionVersion = { "" };
+        final var idCount = new long[1];
+        if (FSDK.GetTrackerParameter(tracker, "DetectionVersion", detectionVersion, 16) != FSDK.FSDKE_OK ||
+            FSDK.GetTrackerIDsCount(tracker, idCount) != FSDK.FSDKE_OK) {
+            Log.e("luxand_fsdk", "Error while reading tracker memory information");
+            return null;
+        }
+
+        final var ids = new long[(int)idCount[0]];
+        if (ids.length > 0 && FSDK.GetTrackerAllIDs(tracker, ids) != FSDK.FSDKE_OK) {
+            Log.e("luxand_fsdk", "Error while reading tracker IDs");
+            return null;
+        }
+
+        /* Every journal record so far describes a change already applied to the tracker, so the snapshot includes it. */
+        final var journalSequence = journal == null ? 0 : journal.getLastSequence();
+        if (journal != null)
+            journal.markCheckpoint(ids);
+
+        return new TrackerSnapshot(Integer.parseInt(detectionVersion[0].trim()), idCount[0], System.currentTimeMillis(), journalSequence, buffer, (int)size[0]);
+    }
+
+    private void write(final File file, final TrackerSnapshot snapshot) throws IOException {
+        final var temporaryFile = new File(file.getPath() + ".tmp");
+
+        try (final var output = new FileOutputStream(temporaryFile)) {
+            snapshot.write(output);
+
+            /* Data must reach the disk before the rename, otherwise a crash may leave an empty file under the final name. */
+            output.getFD().sync();
+        }
+
+        if (!temporaryFile.renameTo(file))
+            throw new IOException("Cannot replace " + file + " with " + temporaryFile);
+    }
+}
@@ -0,0 +1,184 @@
+package com.example.liverecognition;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Tracker memory saved with SaveTrackerMemoryToBuffer, wrapped into a container with a small header:
+ *
+ *   magic, format version, detection version, ID count, creation time, journal sequence, body length, CRC32 of the body
+ *
+ * The journal sequence is the number of the last TrackerJournal record included in the snapshot, format version 1 has none.
+ * The header is checked before the body is read, so a file saved with a different detection version
+ * is rejected without handing it to the native library, and a truncated or corrupted file is detected
+ * by its length and checksum. The body is read straight into the array LoadTrackerMemoryFromBuffer takes: the JNI
+ * binding only accepts a byte[], so mapping the file would only add a copy.
+ * Files without the magic are tracker memory saved by SaveTrackerMemoryToFile before the container was introduced.
+ */
+public class TrackerSnapshot {
+
+    /** "FSTM" */
+    private static final int MAGIC = 0x4653544D;
+
+    /** Increased when the header layout changes. */
+    public static final int FORMAT_VERSION = 2;
+
+    /** Header sizes of format versions 1 and 2. */
+    private static final int HEADER_SIZE_V1 = 40;
+    private static final int HEADER_SIZE = 48;
+
+    private final int formatVersion;
+    private final int detectionVersion;
+    private final long idCount;
+    private final long creationTime;
+    private final long journalSequence;
+    private final int headerSize;
+    private final int bodyLength;
+    private final int checksum;
+    private byte[] body;
+
+    /**
+     * @param body Tracker memory, only the first bodyLength bytes are used.
+     */
+    public TrackerSnapshot(final int detectionVersion, final long idCount, final long creationTime, final long journalSequence,
+                           @NonNull final byte[] body, final int bodyLength) {
+        this.formatVersion = FORMAT_VERSION;
+        this.detectionVersion = detectionVersion;
+        this.idCount = idCount;
+        this.creationTime = creationTime;
+        this.journalSequence = journalSequence;
+        this.headerSize = HEADER_SIZE;
+        this.body = body;
+        this.bodyLength = bodyLength;
+
+        /* Computed by write, off the thread that took the snapshot. */
+        this.checksum = 0;
+    }
+
+    private TrackerSnapshot(final ByteBuffer header) {
+        formatVersion = header.getInt();
+        detectionVersion = header.getInt();
+        idCount = header.getLong();
+        creationTime = header.getLong();
+        journalSequence = formatVersion >= 2 ? header.getLong() : 0;
+        headerSize = formatVersion >= 2 ? HEADER_SIZE : HEADER_SIZE_V1;
+        final var length = header.getLong();
+        bodyLength = length < 0 || length > Integer.MAX_VALUE ? -1 : (int)length;
+        checksum = header.getInt();
+        body = null;
+    }
+
+    public int getFormatVersion() {
+        return formatVersion;
+    }
+
+    public int getDetectionVersion() {
+        return detectionVersion;
+    }
+
+    public long getIDCount() {
+        return idCount;
+    }
+
+    /** Time the snapshot was taken, in milliseconds since the epoch. */
+    public long getCreationTime() {
+        return creationTime;
+    }
+
+    /** Sequence number of the last journal record included in the snapshot, 0 if none. */
+    public long getJournalSequence() {
+        return journalSequence;
+    }
+
+    public int getBodyLength() {
+        return bodyLength;
+    }
+
+    /** Tracker memory, ready for LoadTrackerMemoryFromBuffer once readBody has succeeded. */
+    @Nullable
+    public byte[] getBody() {
+        return body;
+    }
+
+    public void write(@NonNull final OutputStream output) throws IOException {
+        final var header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC);
+        header.putInt(formatVersion);
+        header.putInt(detectionVersion);
+        header.putLong(idCount);
+        header.putLong(creationTime);
+        header.putLong(journalSequence);
+        header.putLong(bodyLength);
+        header.putInt(checksum(body, bodyLength));
+
+        output.write(header.array());
+        output.write(body, 0, bodyLength);
+    }
+
+    /**
+     * Reads the header at the start of the channel.
+     *
+     * @return Null if the file doesn't start with the container magic, like tracker memory saved with SaveTrackerMemoryToFile.
+     * @throws IOException If the header is truncated or from a newer format version, or the file is shorter than the header claims.
+     */
+    @Nullable
+    public static TrackerSnapshot readHeader(@NonNull final FileChannel channel) throws IOException {
+        final var header = ByteBuffer.allocate(HEADER_SIZE);
+        while (header.hasRemaining()) {
+            if (channel.read(header, header.position()) < 0)
+                break;
+        }
+        header.flip();
+
+        if (header.remaining() < Integer.BYTES || header.getInt() != MAGIC)
+            return null;
+
+        if (header.remaining() < Integer.BYTES)
+            throw new IOException("Truncated tracker snapshot header");
+
+        final var formatVersion = header.getInt(header.position());
+        if (formatVersion < 1 || formatVersion > FORMAT_VERSION)
+            throw new IOException("Unsupported tracker snapshot format " + formatVersion);
+
+        if (header.limit() < (formatVersion >= 2 ? HEADER_SIZE : HEADER_SIZE_V1))
+            throw new IOException("Truncated tracker snapshot header");
+
+        final var snapshot = new TrackerSnapshot(header);
+        if (snapshot.bodyLength < 0 || channel.size() < snapshot.headerSize + (long)snapshot.bodyLength)
+            throw new IOException("Truncated tracker snapshot");
+
+        return snapshot;
+    }
+
+    /**
+     * Reads the body following the header and verifies its checksum.
+     *
+     * @throws IOException If the body doesn't match the checksum.
+     */
+    public void readBody(@NonNull final FileChannel channel) throws IOException {
+        /* LoadTrackerMemoryFromBuffer takes an array of exactly the memory size, a byte[] rather than a ByteBuffer. */
+        final var data = new byte[bodyLength];
+        final var buffer = ByteBuffer.wrap(data);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, headerSize + buffer.position()) < 0)
+                throw new IOException("Truncated tracker snapshot");
+        }
+
+        if (checksum(data, bodyLength) != checksum)
+            throw new IOException("Tracker snapshot checksum mismatch");
+
+        body = data;
+    }
+
+    private static int checksum(final byte[] data, final int length) {
+        final var crc = new CRC32();
+        crc.update(data, 0, length);
+        return (int)crc.getValue();
+    }
+}
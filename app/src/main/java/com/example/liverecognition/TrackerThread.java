@@ -0,0 +1,225 @@
+package com.example.liverecognition;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Single thread owning the tracker: every call into the HTracker is made from it, so no locking is needed around the tracker state.
+ *
+ * Frames have priority over other commands. Enrollment, matching, persistence and similar commands are queued
+ * and run in between frames, in time slices of COMMAND_TIME_SLICE_NS, so that they neither delay a waiting frame
+ * by more than a slice (plus the command running at the time) nor starve while frames arrive back to back.
+ */
+public class TrackerThread {
+
+    /** Time commands may run after a frame while another frame is waiting. At least one command always runs. */
+    private static final long COMMAND_TIME_SLICE_NS = 4_000_000L;
+
+    /**
+     * Frame command, reused for every frame of a camera stream so that feeding frames does not allocate.
+     * Can also be queued as an ordinary command with runCommand, for other work repeated without allocating.
+     * A command is owned by a single caller at a time.
+     */
+    public abstract static class FrameCommand {
+
+        private boolean done = true;
+        private Throwable error = null;
+        private final Runnable queued = this::execute;
+
+        /** Runs on the tracker thread. */
+        protected abstract void run();
+
+        /* Errors are passed on to the caller too, JNI code may throw UnsatisfiedLinkError or OutOfMemoryError,
+         * so the caller never waits forever and the tracker thread keeps running. */
+        private void execute() {
+            Throwable error = null;
+            try {
+                run();
+            } catch (Throwable e) {
+                error = e;
+            } finally {
+                synchronized (this) {
+                    this.error = error;
+                    done = true;
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    private final Object lock = new Object();
+    private final ArrayDeque<FrameCommand> frames = new ArrayDeque<>();
+    private final ArrayDeque<Runnable> commands = new ArrayDeque<>();
+    private final Thread thread;
+
+    public TrackerThread() {
+        thread = new Thread(this::run, "TrackerThread");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public boolean isTrackerThread() {
+        return Thread.currentThread() == thread;
+    }
+
+    /** Queues the command behind frames and earlier commands. */
+    @NonNull
+    public <T> Future<T> submit(@NonNull final Callable<T> command) {
+        final var future = new FutureTask<>(command);
+
+        synchronized (lock) {
+            commands.add(future);
+            lock.notifyAll();
+        }
+
+        return future;
+    }
+
+    /**
+     * Runs the command and waits for its result. Called from the tracker thread, runs the command right away.
+     * Exceptions thrown by the command are rethrown, checked ones wrapped into RuntimeException.
+     */
+    public <T> T call(@NonNull final Callable<T> command) {
+        if (isTrackerThread()) {
+            try {
+                return command.call();
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        return getUninterruptibly(submit(command));
+    }
+
+    /** Runs the frame command ahead of queued commands and waits until it completes. */
+    public void runFrame(@NonNull final FrameCommand command) {
+        if (isTrackerThread()) {
+            command.run();
+            return;
+        }
+
+        prepare(command);
+
+        synchronized (lock) {
+            frames.add(command);
+            lock.notifyAll();
+        }
+
+        await(command);
+    }
+
+    /** Queues the command behind frames and earlier commands, like submit, and waits until it completes. */
+    public void runCommand(@NonNull final FrameCommand command) {
+        if (isTrackerThread()) {
+            command.run();
+            return;
+        }
+
+        prepare(command);
+
+        synchronized (lock) {
+            commands.add(command.queued);
+            lock.notifyAll();
+        }
+
+        await(command);
+    }
+
+    private static void prepare(final FrameCommand command) {
+        synchronized (command) {
+            command.done = false;
+            command.error = null;
+        }
+    }
+
+    private static void await(final FrameCommand command) {
+        var interrupted = false;
+        final Throwable error;
+        synchronized (command) {
+            while (!command.done) {
+                try {
+                    command.wait();
+                } catch (InterruptedException e) {
+                    /* Command is in the queue already, it can't be abandoned. */
+                    interrupted = true;
+                }
+            }
+
+            error = command.error;
+        }
+
+        if (interrupted)
+            Thread.currentThread().interrupt();
+
+        if (error instanceof RuntimeException)
+            throw (RuntimeException)error;
+        if (error instanceof Error)
+            throw (Error)error;
+        if (error != null)
+            throw new RuntimeException(error);
+    }
+
+    /** Waits for the future, keeping the interrupt status for the caller. */
+    public static <T> T getUninterruptibly(@NonNull final Future<T> future) {
+        var interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return future.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    final var cause = e.getCause();
+                    if (cause instanceof RuntimeException)
+                        throw (RuntimeException)cause;
+                    if (cause instanceof Error)
+                        throw (Error)cause;
+                    throw new RuntimeException(cause);
+                }
+            }
+        } finally {
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        var sliceStart = 0L;
+
+        while (true) {
+            FrameCommand frame = null;
+            Runnable command = null;
+
+            synchronized (lock) {
+                while (frames.isEmpty() && commands.isEmpty()) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+
+                /* Waiting frames preempt commands once the slice is used up. */
+                if (!frames.isEmpty() && (commands.isEmpty() || System.nanoTime() - sliceStart >= COMMAND_TIME_SLICE_NS))
+                    frame = frames.poll();
+                else
+                    command = commands.poll();
+            }
+
+            if (frame != null) {
+                frame.execute();
+                sliceStart = System.nanoTime();
+            } else {
+                /* FutureTask and FrameCommand pass exceptions of the command on to the caller. */
+                command.run();
+            }
+        }
+    }
+}
@@ -3,8 +3,125 @@ package com.example.liverecognition;
 import androidx.annotation.NonNull;
 import androidx.camera.core.ImageProxy;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
 public class YUVToRGBConverter {
 
+    /**
+     * Strategies used to convert YUV_420_888 frames. All of them produce identical output.
+     */
+    public enum Mode {
+        /** Copies the planes into an intermediate NV21 buffer, then converts it to RGB. */
+        NV21,
+        /** Reads the plane buffers directly, honoring row and pixel strides, and writes RGB in one pass. */
+        SINGLE_PASS,
+        /** Splits the frame into horizontal stripes of chroma rows and converts them concurrently in a single pass. */
+        PARALLEL
+    }
+
+    /**
+     * Filters used to downscale the frame while converting it.
+     */
+    public enum Filter {
+        /** Output has the size of the frame. */
+        NONE,
+        /** Averages square blocks of pixels, the frame is reduced by an integer factor. */
+        BOX,
+        /** Interpolates between the four nearest pixels, the frame is reduced by an arbitrary ratio. */
+        BILINEAR
+    }
+
+    /** Frames with fewer pixels are converted serially in PARALLEL mode, splitting them costs more than it saves. */
+    private static final int MIN_PARALLEL_PIXELS = 640 * 480;
+
+    /** Minimal number of chroma rows (pairs of image rows) converted by a single stripe. */
+    private static final int MIN_STRIPE_ROWS = 16;
+
+    /** Bilinear weights are fixed point numbers with this many fractional bits. */
+    private static final int WEIGHT_BITS = 8;
+    private static final int WEIGHT_ONE = 1 << WEIGHT_BITS;
+
+    /** Pool used by PARALLEL converters created without an explicit one. */
+    private static ForkJoinPool defaultPool = null;
+
+    /**
+     * Per thread state of the single pass conversion: plane views with independent positions and row buffers.
+     */
+    private static class Stripe {
+
+        private ByteBuffer yBuffer;
+        private ByteBuffer uBuffer;
+        private ByteBuffer vBuffer;
+
+        /* Plane buffers the views above were made of. */
+        private ByteBuffer ySource;
+        private ByteBuffer uSource;
+        private ByteBuffer vSource;
+
+        private final byte[] yRows;
+        private final byte[] uLineBuffer;
+        private final byte[] vLineBuffer;
+
+        /* Second chroma rows for bilinear interpolation and column sums for box filtering. */
+        private byte[] uLineBuffer2;
+        private byte[] vLineBuffer2;
+        private int[] ySums;
+        private int[] uSums;
+        private int[] vSums;
+
+        private Stripe(final int width, final int uRowStride, final int vRowStride) {
+            yRows = new byte[2 * width];
+            uLineBuffer = new byte[uRowStride];
+            vLineBuffer = new byte[vRowStride];
+        }
+
+        /** Views share the content of the planes, but each stripe moves its own positions. Kept as long as the planes are the same buffers. */
+        private void setPlanes(final ByteBuffer yBuffer, final ByteBuffer uBuffer, final ByteBuffer vBuffer) {
+            if (ySource != yBuffer) {
+                ySource = yBuffer;
+                this.yBuffer = yBuffer.duplicate();
+            }
+            if (uSource != uBuffer) {
+                uSource = uBuffer;
+                this.uBuffer = uBuffer.duplicate();
+            }
+            if (vSource != vBuffer) {
+                vSource = vBuffer;
+                this.vBuffer = vBuffer.duplicate();
+            }
+        }
+    }
+
+    /** Converts the rows of one stripe, allocated with the stripes and reinitialized for every frame. */
+    private class StripeTask extends RecursiveAction {
+
+        private final Stripe stripe;
+        private final int firstRow;
+        private final int lastRow;
+
+        private StripeTask(final Stripe stripe, final int firstRow, final int lastRow) {
+            this.stripe = stripe;
+            this.firstRow = firstRow;
+            this.lastRow = lastRow;
+        }
+
+        @Override
+        protected void compute() {
+            convertRows(stripe, stripe.yBuffer, stripe.uBuffer, stripe.vBuffer, firstRow, lastRow);
+        }
+    }
+
+    private final Mode mode;
+    private final ForkJoinPool pool;
+
+    private Filter filter = Filter.NONE;
+    private int targetSize = 0;
+    private boolean grayscale = false;
+
     private int width = -1;
     private int height = -1;
 
@@ -15,13 +132,141 @@ public class YUVToRGBConverter {
     private int vRowStride;
     private int uPixelStride;
     private int vPixelStride;
-    private int outStride;
     private int ySize;
 
-    private byte[] rgb;
+    private int outWidth;
+    private int outHeight;
+    private int boxFactor;
+    private float scaleX = 1.f;
+    private float scaleY = 1.f;
+
+    /*
+     * Rotation and mirroring are applied by the way output pixels are addressed:
+     * pixel (x, y) of the unrotated output is written at outOrigin + x * outColumnStep + y * outRowStep.
+     */
+    private int rotation = -1;
+    private boolean mirror;
+    private int outOrigin;
+    private int outColumnStep;
+    private int outRowStep;
+
+    /* Source columns and weights of the output columns, precomputed for bilinear filtering. */
+    private int[] xIndices;
+    private int[] xWeights;
+    private int[] chromaXIndices;
+    private int[] chromaXWeights;
+
+    /* Buffer owned by the converter and the destination of the conversion in progress, which might be supplied by the caller. */
+    private byte[] buffer;
+    private byte[] output;
     private byte[] nv21;
     private byte[] uLineBuffer;
     private byte[] vLineBuffer;
+    private Stripe[] stripes;
+    private StripeTask[] stripeTasks;
+
+    public YUVToRGBConverter() {
+        this(Mode.SINGLE_PASS);
+    }
+
+    public YUVToRGBConverter(@NonNull final Mode mode) {
+        this(mode, mode == Mode.PARALLEL ? getDefaultPool() : null);
+    }
+
+    /**
+     * @param pool Pool the stripes are converted on in PARALLEL mode, ignored by other modes.
+     */
+    public YUVToRGBConverter(@NonNull final Mode mode, final ForkJoinPool pool) {
+        if (mode == Mode.PARALLEL && pool == null)
+            throw new IllegalArgumentException("PARALLEL conversion requires a pool");
+
+        this.mode = mode;
+        this.pool = pool;
+    }
+
+    private static synchronized ForkJoinPool getDefaultPool() {
+        if (defaultPool == null)
+            defaultPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+        return defaultPool;
+    }
+
+    @NonNull
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * Downscales frames while converting them, so that the longer side of the output is not shorter than targetSize.
+     * BOX reduces the frame by the largest integer factor that satisfies it, BILINEAR matches targetSize exactly.
+     * Frames that are already small enough are converted at their own size.
+     */
+    public void setDownscale(@NonNull final Filter filter, final int targetSize) {
+        if (filter != Filter.NONE && mode == Mode.NV21)
+            throw new IllegalStateException("NV21 conversion does not support downscaling");
+
+        this.filter = filter;
+        this.targetSize = targetSize;
+
+        /* Force buffers to be recomputed on the next frame. */
+        width = -1;
+        height = -1;
+    }
+
+    /**
+     * Outputs 8-bit grayscale images made of the luma plane only, chroma planes are not read at all.
+     */
+    public void setGrayscale(final boolean grayscale) {
+        if (grayscale && mode == Mode.NV21)
+            throw new IllegalStateException("NV21 conversion does not support grayscale output");
+
+        if (this.grayscale == grayscale)
+            return;
+
+        this.grayscale = grayscale;
+
+        /* Force buffers to be recomputed on the next frame. */
+        width = -1;
+        height = -1;
+    }
+
+    public boolean isGrayscale() {
+        return grayscale;
+    }
+
+    /** Number of bytes per pixel of the converted image: 1 for grayscale, 3 for color. */
+    public int getBytesPerPixel() {
+        return grayscale ? 1 : 3;
+    }
+
+    /** Number of bytes in the converted image. */
+    public int getOutputSize() {
+        return outWidth * outHeight * getBytesPerPixel();
+    }
+
+    private boolean isRotatedSideways() {
+        return rotation == 90 || rotation == 270;
+    }
+
+    /** Width of the converted image, after rotation. */
+    public int getOutputWidth() {
+        return isRotatedSideways() ? outHeight : outWidth;
+    }
+
+    /** Height of the converted image, after rotation. */
+    public int getOutputHeight() {
+        return isRotatedSideways() ? outWidth : outHeight;
+    }
+
+    /** Number of upright frame pixels per converted image pixel along the x axis. */
+    public float getScaleX() {
+        return isRotatedSideways() ? scaleY : scaleX;
+    }
+
+    /** Number of upright frame pixels per converted image pixel along the y axis. */
+    public float getScaleY() {
+        return isRotatedSideways() ? scaleX : scaleY;
+    }
 
     private void checkBuffers(final ImageProxy image) {
         final var width = image.getWidth();
@@ -48,21 +293,149 @@ public class YUVToRGBConverter {
         vRowStride = vPlane.getRowStride();
         uPixelStride = uPlane.getPixelStride();
         vPixelStride = vPlane.getPixelStride();
-        outStride = 3 * width;
         ySize = yBuffer.remaining();
 
-        rgb = new byte[width * height * 3];
-        nv21 = new byte[ySize + width * height / 2];
-        uLineBuffer = new byte[uRowStride];
-        vLineBuffer = new byte[vRowStride];
+        checkOutputSize();
+
+        /* Output size might have changed, recompute the layout as well. */
+        rotation = -1;
+
+        buffer = new byte[getOutputSize()];
+
+        /* The full frame intermediate buffer is only needed by the two pass conversion, single pass keeps a few rows per stripe. */
+        if (mode == Mode.NV21) {
+            nv21 = new byte[ySize + width * height / 2];
+            uLineBuffer = new byte[uRowStride];
+            vLineBuffer = new byte[vRowStride];
+        } else {
+            final var stripeCount = mode == Mode.PARALLEL && width * height >= MIN_PARALLEL_PIXELS
+                ? Math.max(1, Math.min(pool.getParallelism(), chromaHeight / MIN_STRIPE_ROWS))
+                : 1;
+
+            stripes = new Stripe[stripeCount];
+            for (int i = 0; i < stripeCount; ++i) {
+                stripes[i] = new Stripe(width, uRowStride, vRowStride);
+
+                if (filter == Filter.BILINEAR) {
+                    stripes[i].uLineBuffer2 = new byte[uRowStride];
+                    stripes[i].vLineBuffer2 = new byte[vRowStride];
+                } else if (filter == Filter.BOX) {
+                    stripes[i].ySums = new int[width];
+                    stripes[i].uSums = new int[chromaWidth];
+                    stripes[i].vSums = new int[chromaWidth];
+                }
+            }
+
+            final var rowCount = getRowCount();
+            stripeTasks = new StripeTask[stripeCount];
+            for (int i = 0; i < stripeCount; ++i)
+                stripeTasks[i] = new StripeTask(stripes[i], rowCount * i / stripeCount, rowCount * (i + 1) / stripeCount);
+        }
+    }
+
+    private void checkOutputSize() {
+        final var longerSide = Math.max(width, height);
+
+        outWidth = width;
+        outHeight = height;
+        boxFactor = 1;
+
+        if (filter == Filter.BOX && longerSide >= 2 * targetSize && targetSize > 0) {
+            boxFactor = longerSide / targetSize;
+            outWidth = width / boxFactor;
+            outHeight = height / boxFactor;
+        } else if (filter == Filter.BILINEAR && longerSide > targetSize && targetSize > 0) {
+            outWidth = Math.max(1, Math.round((float)width * targetSize / longerSide));
+            outHeight = Math.max(1, Math.round((float)height * targetSize / longerSide));
+
+            xIndices = new int[outWidth];
+            xWeights = new int[outWidth];
+            chromaXIndices = new int[outWidth];
+            chromaXWeights = new int[outWidth];
+
+            for (int x = 0; x < outWidth; ++x) {
+                final var sourceX = (x + .5f) * width / outWidth - .5f;
+                xIndices[x] = sourceIndex(sourceX, width);
+                xWeights[x] = sourceWeight(sourceX, width);
+
+                final var chromaX = (sourceX + .5f) / 2 - .5f;
+                chromaXIndices[x] = sourceIndex(chromaX, chromaWidth);
+                chromaXWeights[x] = sourceWeight(chromaX, chromaWidth);
+            }
+        }
+
+        scaleX = (float)width / outWidth;
+        scaleY = (float)height / outHeight;
+    }
+
+    private void checkLayout(final int rotation, final boolean mirror) {
+        if (rotation != 0 && rotation != 90 && rotation != 180 && rotation != 270)
+            throw new IllegalArgumentException("Rotation must be 0, 90, 180 or 270 degrees, got " + rotation);
+
+        if (this.rotation == rotation && this.mirror == mirror)
+            return;
+
+        this.rotation = rotation;
+        this.mirror = mirror;
+
+        /* The mapping is affine, so it is defined by the images of three pixels. */
+        outOrigin = getOutputIndex(0, 0);
+        outColumnStep = getOutputIndex(1, 0) - outOrigin;
+        outRowStep = getOutputIndex(0, 1) - outOrigin;
+    }
+
+    /** Index of the pixel (x, y) of the unrotated output in the rotated and mirrored output. Rotation is clockwise. */
+    private int getOutputIndex(final int x, final int y) {
+        final int rotatedX, rotatedY;
+        switch (rotation) {
+            case 90:
+                rotatedX = outHeight - 1 - y;
+                rotatedY = x;
+                break;
+            case 180:
+                rotatedX = outWidth - 1 - x;
+                rotatedY = outHeight - 1 - y;
+                break;
+            case 270:
+                rotatedX = y;
+                rotatedY = outWidth - 1 - x;
+                break;
+            default:
+                rotatedX = x;
+                rotatedY = y;
+        }
+
+        final var rotatedWidth = getOutputWidth();
+        return getBytesPerPixel() * (rotatedY * rotatedWidth + (mirror ? rotatedWidth - 1 - rotatedX : rotatedX));
+    }
+
+    /** Index of the first of two interpolated samples. */
+    private static int sourceIndex(final float position, final int size) {
+        return Math.min(Math.max(0, (int)Math.floor(position)), size - 1);
+    }
+
+    /** Weight of the second of two interpolated samples. */
+    private static int sourceWeight(final float position, final int size) {
+        if (position <= 0 || position >= size - 1)
+            return 0;
+
+        return Math.round((position - (float)Math.floor(position)) * WEIGHT_ONE);
+    }
+
+    /** Offset of zero in the saturation table, covers every sum produced by the fixed point coefficients below. */
+    private static final int SATURATION_OFFSET = 512;
+    private static final byte[] SATURATION_TABLE = new byte[2 * SATURATION_OFFSET];
+    static {
+        for (int i = 0; i < SATURATION_TABLE.length; ++i)
+            SATURATION_TABLE[i] = (byte)Math.min(255, Math.max(0, i - SATURATION_OFFSET));
     }
 
     private static byte toByte(final int value) {
-        return (byte)Math.min(255, Math.max(0, value));
+        return SATURATION_TABLE[value + SATURATION_OFFSET];
     }
 
     private static int toUnsigned(final int value) {
-        return (value + 256) % 256;
+        return value & 0xFF;
     }
 
     private static void fillRGBBytes(final byte[] rgb, final int r, final int g, final int b, final int y, final int index) {
@@ -71,22 +444,335 @@ public class YUVToRGBConverter {
         rgb[index    ] = toByte(y + b);
     }
 
+    /** Converts a single pixel. */
+    private static void fillRGBPixel(final byte[] rgb, final int u, final int v, final int y, final int index) {
+        final var r = (91881 * v >> 16) - 179;
+        final var g = ((22544 * u + 46793 * v) >> 16) - 135;
+        final var b = (116129 * u >> 16) - 226;
+
+        fillRGBBytes(rgb, r, g, b, y, index);
+    }
+
+    /** Converts a 2x2 block of pixels sharing the same chroma samples. Steps are output index offsets of the next column and row. */
+    private static void fillRGBBlock(final byte[] rgb, final int u, final int v,
+                                     final int y00, final int y01, final int y10, final int y11,
+                                     final int index, final int columnStep, final int rowStep) {
+        final var r = (91881 * v >> 16) - 179;
+        final var g = ((22544 * u + 46793 * v) >> 16) - 135;
+        final var b = (116129 * u >> 16) - 226;
+
+        fillRGBBytes(rgb, r, g, b, y00, index);
+        fillRGBBytes(rgb, r, g, b, y01, index + columnStep);
+
+        fillRGBBytes(rgb, r, g, b, y10, index + rowStep);
+        fillRGBBytes(rgb, r, g, b, y11, index + rowStep + columnStep);
+    }
+
+    /**
+     * Converts the frame into a packed 24-bit (or 8-bit grayscale) image of getOutputWidth() x getOutputHeight() pixels.
+     * The returned buffer is reused by the next call.
+     */
     @NonNull
     public byte[] convert(final ImageProxy image) {
+        return convert(image, 0, false);
+    }
+
+    /**
+     * Converts the frame and writes it rotated clockwise by rotationDegrees (as reported by ImageInfo), optionally mirrored horizontally after rotation.
+     * The returned buffer is reused by the next call.
+     */
+    @NonNull
+    public byte[] convert(final ImageProxy image, final int rotationDegrees, final boolean mirror) {
         checkBuffers(image);
+        checkLayout(rotationDegrees, mirror);
 
-        final var yPlane = image.getPlanes()[0];
-        final var uPlane = image.getPlanes()[1];
-        final var vPlane = image.getPlanes()[2];
+        return convertInto(image, buffer);
+    }
 
-        final var yBuffer = yPlane.getBuffer();
-        final var uBuffer = uPlane.getBuffer();
-        final var vBuffer = vPlane.getBuffer();
+    /**
+     * Same as above, but writes the image into the given buffer, so callers can keep several converted frames at once.
+     * A new buffer is allocated if the given one is null or smaller than getOutputSize() for this frame.
+     */
+    @NonNull
+    public byte[] convert(final ImageProxy image, final int rotationDegrees, final boolean mirror, final byte[] destination) {
+        checkBuffers(image);
+        checkLayout(rotationDegrees, mirror);
+
+        /* Never the internal buffer: callers keeping several frames would all get the same array. */
+        return convertInto(image, destination != null && destination.length >= getOutputSize() ? destination : new byte[getOutputSize()]);
+    }
+
+    private byte[] convertInto(final ImageProxy image, final byte[] output) {
+        this.output = output;
+
+        final var yBuffer = image.getPlanes()[0].getBuffer();
+        final var uBuffer = image.getPlanes()[1].getBuffer();
+        final var vBuffer = image.getPlanes()[2].getBuffer();
 
         yBuffer.rewind();
         uBuffer.rewind();
         vBuffer.rewind();
 
+        if (mode == Mode.NV21)
+            convertNV21(yBuffer, uBuffer, vBuffer);
+        else if (stripes.length == 1)
+            convertRows(stripes[0], yBuffer, uBuffer, vBuffer, 0, getRowCount());
+        else
+            convertParallel(yBuffer, uBuffer, vBuffer);
+
+        return output;
+    }
+
+    /** Number of rows split between stripes: chroma rows at full size, output rows otherwise. */
+    private int getRowCount() {
+        return outWidth == width && outHeight == height ? chromaHeight : outHeight;
+    }
+
+    private void convertRows(final Stripe stripe, final ByteBuffer yBuffer, final ByteBuffer uBuffer, final ByteBuffer vBuffer,
+                             final int firstRow, final int lastRow) {
+        if (outWidth == width && outHeight == height && grayscale)
+            convertLuma(stripe, yBuffer, firstRow, lastRow);
+        else if (outWidth == width && outHeight == height)
+            convertSinglePass(stripe, yBuffer, uBuffer, vBuffer, firstRow, lastRow);
+        else if (filter == Filter.BOX)
+            convertBox(stripe, yBuffer, uBuffer, vBuffer, firstRow, lastRow);
+        else
+            convertBilinear(stripe, yBuffer, uBuffer, vBuffer, firstRow, lastRow);
+    }
+
+    private void convertParallel(final ByteBuffer yBuffer, final ByteBuffer uBuffer, final ByteBuffer vBuffer) {
+        for (int i = 0; i < stripes.length; ++i) {
+            stripes[i].setPlanes(yBuffer, uBuffer, vBuffer);
+            stripeTasks[i].reinitialize();
+        }
+
+        if (ForkJoinTask.inForkJoinPool() && ForkJoinTask.getPool() == pool) {
+            ForkJoinTask.invokeAll(stripeTasks);
+            return;
+        }
+
+        /* Run the first stripe on the calling thread instead of leaving it idle. */
+        for (int i = 1; i < stripeTasks.length; ++i)
+            pool.execute(stripeTasks[i]);
+
+        stripeTasks[0].invoke();
+        for (int i = 1; i < stripeTasks.length; ++i)
+            stripeTasks[i].join();
+    }
+
+    private int getChromaLength() {
+        return (chromaWidth - 1) * Math.max(uPixelStride, vPixelStride) + 1;
+    }
+
+    private static void readRow(final ByteBuffer buffer, final int position, final byte[] row, final int offset, final int length) {
+        buffer.position(position);
+        buffer.get(row, offset, Math.min(length, buffer.remaining()));
+    }
+
+    private void convertSinglePass(final Stripe stripe, final ByteBuffer yBuffer, final ByteBuffer uBuffer, final ByteBuffer vBuffer,
+                                   final int firstRow, final int lastRow) {
+        final var yRows = stripe.yRows;
+        final var uLineBuffer = stripe.uLineBuffer;
+        final var vLineBuffer = stripe.vLineBuffer;
+        final var chromaLength = getChromaLength();
+
+        for (int row = firstRow; row < lastRow; ++row) {
+            /* Bulk reads of the rows in use are much cheaper than per-sample reads from direct buffers. */
+            readRow(yBuffer, 2 * row * yRowStride, yRows, 0, width);
+            readRow(yBuffer, (2 * row + 1) * yRowStride, yRows, width, width);
+            readRow(uBuffer, row * uRowStride, uLineBuffer, 0, chromaLength);
+            readRow(vBuffer, row * vRowStride, vLineBuffer, 0, chromaLength);
+
+            var yIndex = 0;
+            var uIndex = 0;
+            var vIndex = 0;
+            var outIndex = outOrigin + 2 * row * outRowStep;
+
+            for (int col = 0; col < chromaWidth; ++col) {
+                /* NV21 stores V before U and the conversion reads them in that order, keep it to produce identical output. */
+                fillRGBBlock(output, toUnsigned(vLineBuffer[vIndex]), toUnsigned(uLineBuffer[uIndex]),
+                    toUnsigned(yRows[yIndex]), toUnsigned(yRows[yIndex + 1]),
+                    toUnsigned(yRows[yIndex + width]), toUnsigned(yRows[yIndex + width + 1]),
+                    outIndex, outColumnStep, outRowStep);
+
+                yIndex += 2;
+                uIndex += uPixelStride;
+                vIndex += vPixelStride;
+                outIndex += 2 * outColumnStep;
+            }
+        }
+    }
+
+    /** Copies pairs of luma rows into the grayscale output. */
+    private void convertLuma(final Stripe stripe, final ByteBuffer yBuffer, final int firstRow, final int lastRow) {
+        final var yRow = stripe.yRows;
+
+        for (int row = 2 * firstRow; row < 2 * lastRow; ++row) {
+            var outIndex = outOrigin + row * outRowStep;
+
+            /* Upright rows are copied straight into the output. */
+            if (outColumnStep == 1) {
+                readRow(yBuffer, row * yRowStride, output, outIndex, width);
+                continue;
+            }
+
+            readRow(yBuffer, row * yRowStride, yRow, 0, width);
+            for (int x = 0; x < width; ++x) {
+                output[outIndex] = yRow[x];
+                outIndex += outColumnStep;
+            }
+        }
+    }
+
+    /** Averages boxFactor x boxFactor blocks: frame rows are summed per column first, then the columns of each block. */
+    private void convertBox(final Stripe stripe, final ByteBuffer yBuffer, final ByteBuffer uBuffer, final ByteBuffer vBuffer,
+                            final int firstRow, final int lastRow) {
+        final var yRow = stripe.yRows;
+        final var uLineBuffer = stripe.uLineBuffer;
+        final var vLineBuffer = stripe.vLineBuffer;
+        final var ySums = stripe.ySums;
+        final var uSums = stripe.uSums;
+        final var vSums = stripe.vSums;
+        final var chromaLength = getChromaLength();
+        final var factor = boxFactor;
+        final var yArea = factor * factor;
+
+        for (int row = firstRow; row < lastRow; ++row) {
+            Arrays.fill(ySums, 0);
+            Arrays.fill(uSums, 0);
+            Arrays.fill(vSums, 0);
+
+            for (int y = row * factor; y < (row + 1) * factor; ++y) {
+                readRow(yBuffer, y * yRowStride, yRow, 0, width);
+                for (int x = 0; x < width; ++x)
+                    ySums[x] += toUnsigned(yRow[x]);
+            }
+
+            final var firstChromaRow = row * factor / 2;
+            final var lastChromaRow = Math.min(((row + 1) * factor - 1) / 2, chromaHeight - 1);
+            for (int y = firstChromaRow; y <= lastChromaRow && !grayscale; ++y) {
+                readRow(uBuffer, y * uRowStride, uLineBuffer, 0, chromaLength);
+                readRow(vBuffer, y * vRowStride, vLineBuffer, 0, chromaLength);
+
+                for (int x = 0; x < chromaWidth; ++x) {
+                    uSums[x] += toUnsigned(uLineBuffer[x * uPixelStride]);
+                    vSums[x] += toUnsigned(vLineBuffer[x * vPixelStride]);
+                }
+            }
+
+            final var chromaRows = lastChromaRow - firstChromaRow + 1;
+            var outIndex = outOrigin + row * outRowStep;
+
+            for (int col = 0; col < outWidth; ++col) {
+                var ySum = 0;
+                for (int x = col * factor; x < (col + 1) * factor; ++x)
+                    ySum += ySums[x];
+
+                if (grayscale) {
+                    output[outIndex] = (byte)((ySum + yArea / 2) / yArea);
+                    outIndex += outColumnStep;
+                    continue;
+                }
+
+                final var firstChromaColumn = col * factor / 2;
+                final var lastChromaColumn = Math.min(((col + 1) * factor - 1) / 2, chromaWidth - 1);
+
+                var uSum = 0;
+                var vSum = 0;
+                for (int x = firstChromaColumn; x <= lastChromaColumn; ++x) {
+                    uSum += uSums[x];
+                    vSum += vSums[x];
+                }
+
+                final var chromaArea = chromaRows * (lastChromaColumn - firstChromaColumn + 1);
+
+                /* Keep the chroma order of the full size conversion. */
+                fillRGBPixel(output, (vSum + chromaArea / 2) / chromaArea, (uSum + chromaArea / 2) / chromaArea,
+                    (ySum + yArea / 2) / yArea, outIndex);
+
+                outIndex += outColumnStep;
+            }
+        }
+    }
+
+    private static int interpolate(final int a, final int b, final int weight) {
+        return a * (WEIGHT_ONE - weight) + b * weight;
+    }
+
+    /** Bilinear interpolation of both luma and chroma samples with fixed point weights. */
+    private void convertBilinear(final Stripe stripe, final ByteBuffer yBuffer, final ByteBuffer uBuffer, final ByteBuffer vBuffer,
+                                 final int firstRow, final int lastRow) {
+        final var yRows = stripe.yRows;
+        final var uLines = stripe.uLineBuffer;
+        final var vLines = stripe.vLineBuffer;
+        final var uLines2 = stripe.uLineBuffer2;
+        final var vLines2 = stripe.vLineBuffer2;
+        final var chromaLength = getChromaLength();
+        final var rounding = 1 << (2 * WEIGHT_BITS - 1);
+
+        for (int row = firstRow; row < lastRow; ++row) {
+            final var sourceY = (row + .5f) * height / outHeight - .5f;
+            final var y0 = sourceIndex(sourceY, height);
+            final var y1 = Math.min(y0 + 1, height - 1);
+            final var yWeight = sourceWeight(sourceY, height);
+
+            final var chromaY = (sourceY + .5f) / 2 - .5f;
+            final var chromaY0 = sourceIndex(chromaY, chromaHeight);
+            final var chromaY1 = Math.min(chromaY0 + 1, chromaHeight - 1);
+            final var chromaYWeight = sourceWeight(chromaY, chromaHeight);
+
+            readRow(yBuffer, y0 * yRowStride, yRows, 0, width);
+            readRow(yBuffer, y1 * yRowStride, yRows, width, width);
+
+            if (!grayscale) {
+                readRow(uBuffer, chromaY0 * uRowStride, uLines, 0, chromaLength);
+                readRow(uBuffer, chromaY1 * uRowStride, uLines2, 0, chromaLength);
+                readRow(vBuffer, chromaY0 * vRowStride, vLines, 0, chromaLength);
+                readRow(vBuffer, chromaY1 * vRowStride, vLines2, 0, chromaLength);
+            }
+
+            var outIndex = outOrigin + row * outRowStep;
+
+            for (int col = 0; col < outWidth; ++col) {
+                final var x0 = xIndices[col];
+                final var x1 = Math.min(x0 + 1, width - 1);
+                final var xWeight = xWeights[col];
+
+                final var y = interpolate(
+                    interpolate(toUnsigned(yRows[x0]), toUnsigned(yRows[x1]), xWeight),
+                    interpolate(toUnsigned(yRows[width + x0]), toUnsigned(yRows[width + x1]), xWeight),
+                    yWeight);
+
+                if (grayscale) {
+                    output[outIndex] = (byte)((y + rounding) >> (2 * WEIGHT_BITS));
+                    outIndex += outColumnStep;
+                    continue;
+                }
+
+                final var chromaX0 = chromaXIndices[col];
+                final var chromaX1 = Math.min(chromaX0 + 1, chromaWidth - 1);
+                final var chromaXWeight = chromaXWeights[col];
+
+                final var u = interpolate(
+                    interpolate(toUnsigned(uLines[chromaX0 * uPixelStride]), toUnsigned(uLines[chromaX1 * uPixelStride]), chromaXWeight),
+                    interpolate(toUnsigned(uLines2[chromaX0 * uPixelStride]), toUnsigned(uLines2[chromaX1 * uPixelStride]), chromaXWeight),
+                    chromaYWeight);
+
+                final var v = interpolate(
+                    interpolate(toUnsigned(vLines[chromaX0 * vPixelStride]), toUnsigned(vLines[chromaX1 * vPixelStride]), chromaXWeight),
+                    interpolate(toUnsigned(vLines2[chromaX0 * vPixelStride]), toUnsigned(vLines2[chromaX1 * vPixelStride]), chromaXWeight),
+                    chromaYWeight);
+
+                /* Keep the chroma order of the full size conversion. */
+                fillRGBPixel(output, (v + rounding) >> (2 * WEIGHT_BITS), (u + rounding) >> (2 * WEIGHT_BITS),
+                    (y + rounding) >> (2 * WEIGHT_BITS), outIndex);
+
+                outIndex += outColumnStep;
+            }
+        }
+    }
+
+    private void convertNV21(final ByteBuffer yBuffer, final ByteBuffer uBuffer, final ByteBuffer vBuffer) {
         var position = 0;
         for (int i = 0; i < height; ++i) {
             yBuffer.get(nv21, position, width);
@@ -115,28 +801,18 @@ public class YUVToRGBConverter {
 
         for (int i = 0; i < height / 2; ++i) {
             yIndex = 2 * i * width;
-            outIndex = 6 * i * width;
+            outIndex = outOrigin + 2 * i * outRowStep;
 
             for (int j = 0; j < width / 2; ++j) {
-                final var u = toUnsigned(nv21[cIndex]);
-                final var v = toUnsigned(nv21[cIndex + 1]);
-
-                final var r = (91881 * v >> 16) - 179;
-                final var g = ((22544 * u + 46793 * v) >> 16) - 135;
-                final var b = (116129 * u >> 16) - 226;
-
-                fillRGBBytes(rgb, r, g, b, toUnsigned(nv21[yIndex]), outIndex);
-                fillRGBBytes(rgb, r, g, b, toUnsigned(nv21[yIndex + 1]), outIndex + 3);
-
-                fillRGBBytes(rgb, r, g, b, toUnsigned(nv21[yIndex + width]), outIndex + outStride);
-                fillRGBBytes(rgb, r, g, b, toUnsigned(nv21[yIndex + width + 1]), outIndex + outStride + 3);
+                fillRGBBlock(output, toUnsigned(nv21[cIndex]), toUnsigned(nv21[cIndex + 1]),
+                    toUnsigned(nv21[yIndex]), toUnsigned(nv21[yIndex + 1]),
+                    toUnsigned(nv21[yIndex + width]), toUnsigned(nv21[yIndex + width + 1]),
+                    outIndex, outColumnStep, outRowStep);
 
                 yIndex += 2;
                 cIndex += 2;
-                outIndex += 6;
+                outIndex += 2 * outColumnStep;
             }
         }
-
-        return rgb;
     }
 }
@@ -0,0 +1,52 @@
+package com.example.liverecognition;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class AttributeParserTest {
+
+    @Test
+    public void parsesConfidence() {
+        final var parser = new AttributeParser(4);
+        assertEquals(0.9731245f, parser.getConfidence("Liveness=0.9731245;", "Liveness", -1.f), 0.f);
+        assertEquals(0.62f, parser.getConfidence("Liveness=0.9;ImageQuality= 0.62 ;", "ImageQuality", -1.f), 0.f);
+        assertEquals(1.5e-3f, parser.getConfidence("Liveness=1.5e-3", "Liveness", -1.f), 0.f);
+    }
+
+    @Test
+    public void reportsMissingOrMalformedValues() {
+        final var parser = new AttributeParser(4);
+        assertEquals(-1.f, parser.getConfidence("ImageQuality=0.62;", "Liveness", -1.f), 0.f);
+        assertEquals(-1.f, parser.getConfidence("Liveness=abc;", "Liveness", -1.f), 0.f);
+        assertEquals(-1.f, parser.getConfidence("Liveness=;", "Liveness", -1.f), 0.f);
+        assertEquals(-1.f, parser.getConfidence("", "Liveness", -1.f), 0.f);
+        assertNull(parser.getValue("Liveness=0.5;", "LivenessError"));
+    }
+
+    @Test
+    public void skipsPairsWithoutSeparator() {
+        final var parser = new AttributeParser(4);
+        assertEquals(0.5f, parser.getConfidence("Foo;Liveness=0.5", "Liveness", -1.f), 0.f);
+        assertEquals(0.5f, parser.getConfidence(";;Foo;Liveness=0.5;Bar", "Liveness", -1.f), 0.f);
+        assertEquals(-1.f, parser.getConfidence("Liveness;Foo=0.5", "Liveness", -1.f), 0.f);
+    }
+
+    @Test
+    public void matchesWholeNames() {
+        final var parser = new AttributeParser(4);
+        assertEquals(0.3f, parser.getConfidence("LivenessScore=0.7; Liveness =0.3", "Liveness", -1.f), 0.f);
+    }
+
+    @Test
+    public void internsTextValues() {
+        final var parser = new AttributeParser(1);
+        final var error = parser.getValue("LivenessError= Face is too small ;", "LivenessError");
+        assertEquals("Face is too small", error);
+        assertSame(error, parser.getValue(new String("LivenessError=Face is too small;"), "LivenessError"));
+        assertSame(AttributeParser.UNKNOWN_VALUE, parser.getValue("LivenessError=Too dark;", "LivenessError"));
+        assertEquals(1, parser.getInternedCount());
+    }
+}
@@ -0,0 +1,95 @@
+package com.example.liverecognition;
+
+import org.junit.Test;
+
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class FaceLabelFormatterTest {
+
+    /* Templates shipped in res/values/strings.xml. */
+    private static final String LIVE_FACE = "Liveness: %.2f";
+    private static final String FAKE_FACE = "Liveness: %.2f (fake)";
+    private static final String LOW_IMAGE_QUALITY = "Low quality: %.3f";
+    private static final String IMAGE_QUALITY = "Quality: %.3f";
+
+    private static FaceLabelFormatter createFormatter(final char decimalSeparator) {
+        return new FaceLabelFormatter(LIVE_FACE, FAKE_FACE, LOW_IMAGE_QUALITY, IMAGE_QUALITY, decimalSeparator);
+    }
+
+    private static String text(final FaceLabelFormatter.Label label) {
+        return new String(label.getText(), 0, label.getLength());
+    }
+
+    /* Label as it was built with String.format before the formatter. */
+    private static String expected(final Locale locale, final String name, final boolean useImageQuality, final float liveness, final float imageQuality) {
+        final var text = new StringBuilder();
+        if (useImageQuality && imageQuality < 0.5) {
+            text.append(String.format(locale, LOW_IMAGE_QUALITY, imageQuality));
+        } else {
+            if (useImageQuality)
+                text.append(String.format(locale, IMAGE_QUALITY, imageQuality)).append("; ");
+            text.append(String.format(locale, liveness < 0.5 ? FAKE_FACE : LIVE_FACE, liveness));
+        }
+
+        if (!name.isEmpty())
+            text.append("; ").append(name);
+        return text.toString();
+    }
+
+    @Test
+    public void reusesLabelWhileRoundedValuesDontChange() {
+        final var formatter = createFormatter('.');
+        final var label = formatter.format(1, "Bob", true, false, 0.971f, 0.f, null);
+        assertEquals("Liveness: 0.97; Bob", text(label));
+
+        /* A rebuilt label would overwrite the marker. */
+        label.getText()[0] = '#';
+        final var unchanged = formatter.format(1, "Bob", true, false, 0.9749f, 0.f, null);
+        assertSame(label, unchanged);
+        assertEquals("#iveness: 0.97; Bob", text(unchanged));
+    }
+
+    @Test
+    public void rebuildsChangedLabelInPlace() {
+        final var formatter = createFormatter('.');
+        final var label = formatter.format(1, "Bob", true, false, 0.97f, 0.f, null);
+        final var text = label.getText();
+
+        final var changed = formatter.format(1, "Bob", true, false, 0.42f, 0.f, null);
+        assertSame(label, changed);
+        assertSame(text, changed.getText());
+        assertEquals("Liveness: 0.42 (fake); Bob", text(changed));
+
+        final var renamed = formatter.format(1, "Alice", true, false, 0.42f, 0.f, null);
+        assertSame(text, renamed.getText());
+        assertEquals("Liveness: 0.42 (fake); Alice", text(renamed));
+    }
+
+    @Test
+    public void matchesStringFormat() {
+        final var formatter = createFormatter('.');
+        for (var i = 0; i <= 2000; ++i) {
+            final var liveness = i / 2000.f;
+            final var imageQuality = 1.f - i / 2000.f;
+            assertEquals(expected(Locale.US, "Bob", false, liveness, imageQuality), text(formatter.format(1, "Bob", true, false, liveness, imageQuality, null)));
+            assertEquals(expected(Locale.US, "", true, liveness, imageQuality), text(formatter.format(2, "", true, true, liveness, imageQuality, null)));
+        }
+    }
+
+    @Test
+    public void usesDecimalSeparatorOfLocale() {
+        final var formatter = createFormatter(',');
+        assertEquals(expected(Locale.GERMANY, "Bob", true, 0.8765f, 0.6543f), text(formatter.format(1, "Bob", true, true, 0.8765f, 0.6543f, null)));
+    }
+
+    @Test
+    public void showsLivenessErrorsAndNamesOnly() {
+        final var formatter = createFormatter('.');
+        assertEquals("Face is too small; Bob", text(formatter.format(1, "Bob", true, true, 0.9f, 0.9f, "Face is too small")));
+        assertEquals("Bob", text(formatter.format(2, "Bob", true, false, -1.f, 0.f, null)));
+        assertEquals("Bob", text(formatter.format(3, "Bob", false, false, 0.9f, 0.f, null)));
+    }
+}
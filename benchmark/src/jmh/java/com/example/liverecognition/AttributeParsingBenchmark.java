@@ -0,0 +1,43 @@
+package com.example.liverecognition;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Per face attribute parsing done by FacesProcessor on every attribute refresh, against the substring based parsing it replaced.
+ * Look at gc.alloc.rate.norm: the parser should report 0 bytes per operation.
+ */
+@State(Scope.Thread)
+public class AttributeParsingBenchmark {
+
+    private static final int livenessErrorStringLength = "LivenessError=".length();
+
+    /* Attribute strings as returned by GetTrackerFacialAttribute, copied so they are not compile time constants. */
+    private final String liveness = new String("Liveness=0.9731245;");
+    private final String imageQuality = new String("ImageQuality=0.62;");
+    private final String livenessError = new String("LivenessError=Face is too small;");
+
+    private AttributeParser parser;
+
+    @Setup
+    public void setup() {
+        parser = new AttributeParser(32);
+    }
+
+    @Benchmark
+    public void parser(final Blackhole blackhole) {
+        blackhole.consume(parser.getConfidence(liveness, "Liveness", -1.f));
+        blackhole.consume(parser.getConfidence(imageQuality, "ImageQuality", -1.f));
+        blackhole.consume(parser.getValue(livenessError, "LivenessError"));
+    }
+
+    @Benchmark
+    public void substring(final Blackhole blackhole) {
+        blackhole.consume(Float.parseFloat(liveness.substring(liveness.indexOf('=') + 1, liveness.indexOf(';'))));
+        blackhole.consume(Float.parseFloat(imageQuality.substring(imageQuality.indexOf('=') + 1, imageQuality.indexOf(';'))));
+        blackhole.consume(livenessError.substring(livenessErrorStringLength, livenessError.indexOf(";")).strip());
+    }
+}
@@ -0,0 +1,43 @@
+package com.example.liverecognition;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Full size color conversion with every YUVToRGBConverter mode, across camera sizes and plane layouts.
+ */
+@State(Scope.Thread)
+public class ConversionBenchmark {
+
+    @Param({ "640x480", "1280x720", "1920x1080" })
+    public String size;
+
+    @Param({ "1", "2" })
+    public int chromaPixelStride;
+
+    @Param({ "0", "64" })
+    public int rowPadding;
+
+    @Param({ "NV21", "SINGLE_PASS", "PARALLEL" })
+    public YUVToRGBConverter.Mode mode;
+
+    private SyntheticImageProxy image;
+    private YUVToRGBConverter converter;
+
+    @Setup
+    public void setup() {
+        image = SyntheticImageProxy.create(size, chromaPixelStride, rowPadding);
+        converter = new YUVToRGBConverter(mode);
+
+        /* Buffers are allocated on the first frame, keep that out of the measurement. */
+        converter.convert(image);
+    }
+
+    @Benchmark
+    public byte[] convert() {
+        return converter.convert(image);
+    }
+}
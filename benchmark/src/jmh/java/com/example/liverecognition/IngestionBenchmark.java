@@ -0,0 +1,50 @@
+package com.example.liverecognition;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Java side of FacesProcessor.accept: the frame is converted upright, optionally downscaled and grayscale,
+ * ready for FSDK.LoadImageFromBuffer. Frames use the semi-planar layout most devices deliver.
+ */
+@State(Scope.Thread)
+public class IngestionBenchmark {
+
+    @Param({ "640x480", "1280x720" })
+    public String size;
+
+    @Param({ "0", "90" })
+    public int rotation;
+
+    @Param({ "NONE", "BOX", "BILINEAR" })
+    public YUVToRGBConverter.Filter filter;
+
+    @Param({ "false", "true" })
+    public boolean grayscale;
+
+    @Param({ "SINGLE_PASS", "PARALLEL" })
+    public YUVToRGBConverter.Mode mode;
+
+    /** Matches FaceDetection2PatchSize used by FacesProcessor. */
+    private static final int DETECTION_PATCH_SIZE = 256;
+
+    private SyntheticImageProxy image;
+    private YUVToRGBConverter converter;
+
+    @Setup
+    public void setup() {
+        image = SyntheticImageProxy.create(size, 2, 0);
+        converter = new YUVToRGBConverter(mode);
+        converter.setDownscale(filter, DETECTION_PATCH_SIZE);
+        converter.setGrayscale(grayscale);
+        converter.convert(image, rotation, false);
+    }
+
+    @Benchmark
+    public byte[] ingest() {
+        return converter.convert(image, rotation, false);
+    }
+}
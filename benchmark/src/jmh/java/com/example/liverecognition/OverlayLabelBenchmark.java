@@ -0,0 +1,77 @@
+package com.example.liverecognition;
+
+import java.util.Locale;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Face labels built by FacesView on every drawn frame, for a frame of several faces, against the String.format based
+ * building it replaced. One operation is one frame. Look at gc.alloc.rate.norm: both formatter benchmarks should
+ * report 0 bytes per operation, whether the labels are reused or rebuilt.
+ */
+@State(Scope.Thread)
+public class OverlayLabelBenchmark {
+
+    private static final int FACE_COUNT = 4;
+
+    private static final String LIVE_FACE = "Liveness: %.2f";
+    private static final String FAKE_FACE = "Liveness: %.2f (fake)";
+    private static final String LOW_IMAGE_QUALITY = "Low quality: %.3f";
+    private static final String IMAGE_QUALITY = "Quality: %.3f";
+
+    private final String[] names = { new String("Alice"), new String(""), new String("Bob"), new String("") };
+    private final float[] liveness = { 0.9731f, 0.31f, 0.88f, 0.67f };
+    private final float[] imageQuality = { 0.62f, 0.71f, 0.93f, 0.55f };
+
+    private final StringBuilder faceText = new StringBuilder();
+    private FaceLabelFormatter formatter;
+    private int frame = 0;
+
+    @Setup
+    public void setup() {
+        formatter = new FaceLabelFormatter(LIVE_FACE, FAKE_FACE, LOW_IMAGE_QUALITY, IMAGE_QUALITY, '.');
+    }
+
+    /* Values move less than the displayed precision between frames, labels are reused. */
+    @Benchmark
+    public void formatterSteady(final Blackhole blackhole) {
+        final var jitter = (++frame & 1) * 0.0001f;
+        for (var i = 0; i < FACE_COUNT; ++i) {
+            final var label = formatter.format(i, names[i], true, true, liveness[i] + jitter, imageQuality[i], null);
+            blackhole.consume(label.getText());
+            blackhole.consume(label.getLength());
+        }
+    }
+
+    /* Values change every frame, labels are rebuilt. */
+    @Benchmark
+    public void formatterChanging(final Blackhole blackhole) {
+        final var jitter = (++frame & 7) * 0.01f;
+        for (var i = 0; i < FACE_COUNT; ++i) {
+            final var label = formatter.format(i, names[i], true, true, liveness[i] + jitter, imageQuality[i] + jitter, null);
+            blackhole.consume(label.getText());
+            blackhole.consume(label.getLength());
+        }
+    }
+
+    @Benchmark
+    public void stringFormat(final Blackhole blackhole) {
+        final var jitter = (++frame & 1) * 0.0001f;
+        for (var i = 0; i < FACE_COUNT; ++i) {
+            final var faceLiveness = liveness[i] + jitter;
+
+            faceText.setLength(0);
+            faceText.append(String.format(Locale.getDefault(), IMAGE_QUALITY, imageQuality[i]));
+            faceText.append("; ");
+            faceText.append(String.format(Locale.getDefault(), faceLiveness < 0.5 ? FAKE_FACE : LIVE_FACE, faceLiveness));
+            if (!names[i].isEmpty())
+                faceText.append("; ").append(names[i]);
+
+            blackhole.consume(faceText.toString());
+        }
+    }
+}
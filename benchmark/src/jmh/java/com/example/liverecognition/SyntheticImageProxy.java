@@ -0,0 +1,127 @@
+package com.example.liverecognition;
+
+import androidx.annotation.NonNull;
+import androidx.camera.core.ImageProxy;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * YUV_420_888 frame filled with reproducible noise, laid out the way camera HALs deliver it:
+ * rows may be padded past the image width, chroma is either planar (pixel stride 1) or
+ * semi-planar (pixel stride 2, U and V planes are views of one interleaved buffer).
+ */
+public class SyntheticImageProxy implements ImageProxy {
+
+    private static class Plane implements PlaneProxy {
+
+        private final ByteBuffer buffer;
+        private final int rowStride;
+        private final int pixelStride;
+
+        private Plane(final ByteBuffer buffer, final int rowStride, final int pixelStride) {
+            this.buffer = buffer;
+            this.rowStride = rowStride;
+            this.pixelStride = pixelStride;
+        }
+
+        @Override
+        public int getRowStride() {
+            return rowStride;
+        }
+
+        @Override
+        public int getPixelStride() {
+            return pixelStride;
+        }
+
+        @NonNull
+        @Override
+        public ByteBuffer getBuffer() {
+            return buffer;
+        }
+    }
+
+    private final int width;
+    private final int height;
+    private final PlaneProxy[] planes;
+
+    public SyntheticImageProxy(final int width, final int height, final int chromaPixelStride, final int rowPadding) {
+        if (chromaPixelStride != 1 && chromaPixelStride != 2)
+            throw new IllegalArgumentException("Chroma pixel stride must be 1 or 2");
+
+        this.width = width;
+        this.height = height;
+
+        final var random = new Random(width * 31L + height);
+
+        /* The last row of a plane is not padded, just like in buffers produced by the camera. */
+        final var yRowStride = width + rowPadding;
+        final var yPlane = allocate(random, yRowStride * (height - 1) + width);
+
+        final var chromaWidth = width / 2;
+        final var chromaHeight = height / 2;
+        final var chromaRowStride = chromaWidth * chromaPixelStride + rowPadding;
+        final var chromaSize = chromaRowStride * (chromaHeight - 1) + (chromaWidth - 1) * chromaPixelStride + 1;
+
+        final ByteBuffer uPlane;
+        final ByteBuffer vPlane;
+        if (chromaPixelStride == 2) {
+            final var interleaved = allocate(random, chromaSize + 1);
+
+            uPlane = interleaved.duplicate();
+            uPlane.limit(chromaSize);
+            uPlane.position(0);
+
+            vPlane = interleaved.duplicate();
+            vPlane.position(1);
+            vPlane.limit(chromaSize + 1);
+        } else {
+            uPlane = allocate(random, chromaSize);
+            vPlane = allocate(random, chromaSize);
+        }
+
+        planes = new PlaneProxy[] {
+            new Plane(yPlane, yRowStride, 1),
+            new Plane(uPlane.slice(), chromaRowStride, chromaPixelStride),
+            new Plane(vPlane.slice(), chromaRowStride, chromaPixelStride)
+        };
+    }
+
+    /** Parses sizes written as WIDTHxHEIGHT, the way benchmark parameters specify them. */
+    @NonNull
+    public static SyntheticImageProxy create(@NonNull final String size, final int chromaPixelStride, final int rowPadding) {
+        final var separator = size.indexOf('x');
+        return new SyntheticImageProxy(Integer.parseInt(size.substring(0, separator)), Integer.parseInt(size.substring(separator + 1)),
+            chromaPixelStride, rowPadding);
+    }
+
+    private static ByteBuffer allocate(final Random random, final int size) {
+        final var content = new byte[size];
+        random.nextBytes(content);
+
+        final var buffer = ByteBuffer.allocateDirect(size);
+        buffer.put(content);
+        buffer.flip();
+        return buffer;
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @NonNull
+    @Override
+    public PlaneProxy[] getPlanes() {
+        return planes;
+    }
+
+    @Override
+    public void close() {}
+}
@@ -0,0 +1,27 @@
+package androidx.camera.core;
+
+import java.nio.ByteBuffer;
+
+/**
+ * JVM stand-in for the CameraX ImageProxy. Declares only the members the benchmarked app code uses.
+ */
+public interface ImageProxy extends AutoCloseable {
+
+    interface PlaneProxy {
+
+        int getRowStride();
+
+        int getPixelStride();
+
+        ByteBuffer getBuffer();
+    }
+
+    int getWidth();
+
+    int getHeight();
+
+    PlaneProxy[] getPlanes();
+
+    @Override
+    void close();
+}